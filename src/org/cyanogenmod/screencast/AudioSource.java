@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of raw 16 bit PCM fed to the audio encoder.
+ */
+interface AudioSource {
+    int SAMPLE_RATE = 44100;
+    int CHANNEL_COUNT = 1;
+
+    /**
+     * @return false if the source could not be opened, in which case the
+     *         recording continues without an audio track.
+     */
+    boolean isInitialized();
+
+    void start();
+
+    /**
+     * Blocks until up to {@code size} bytes have been written into
+     * {@code buffer}.
+     *
+     * @return the number of bytes read, or a negative error code.
+     */
+    int read(ByteBuffer buffer, int size);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+/**
+ * Steers the video encoder towards a target bitrate, such as a storage or
+ * network budget, from the sizes of the frames it actually produces. Once a
+ * second the output rate is compared with what the budget allows, and the
+ * encoder bitrate scaled to match. Overruns and underruns are paid back over
+ * the following seconds, so the long term average stays on budget, while
+ * the bitrate never drops below a quality floor.
+ *
+ * Pure bookkeeping without any codec access, so frame size traces can be
+ * replayed through it.
+ */
+class BitrateController {
+    private static final long WINDOW_US = 1000000L;
+    // how quickly the recording gets back on budget
+    private static final long PAYBACK_US = 10000000L;
+    // smaller changes aren't worth a codec parameter update
+    private static final double MIN_CHANGE = 0.1;
+    // largest step per window, either way
+    private static final double MAX_SCALE = 2.0;
+
+    private final int targetBitrate;
+    private final int minBitrate;
+    private final int maxBitrate;
+    private int bitrate;
+
+    private long startUs = -1;
+    private long windowStartUs;
+    private long windowBytes;
+    private long totalBytes;
+
+    /**
+     * @param targetBitrate long term average to aim for, bits per second
+     * @param minBitrate quality floor
+     * @param maxBitrate most the encoder supports
+     */
+    public BitrateController(int targetBitrate, int minBitrate, int maxBitrate) {
+        this.maxBitrate = maxBitrate;
+        this.minBitrate = Math.min(minBitrate, maxBitrate);
+        this.targetBitrate = targetBitrate;
+        bitrate = clamp(targetBitrate);
+    }
+
+    /**
+     * @return the bitrate the encoder should currently be set to.
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Accounts for an encoded video frame.
+     *
+     * @return the new bitrate to set the encoder to, or 0 to keep it
+     */
+    public int onFrame(int size, long ptsUs) {
+        if (startUs < 0) {
+            startUs = ptsUs;
+            windowStartUs = ptsUs;
+        }
+        windowBytes += size;
+        totalBytes += size;
+        long windowUs = ptsUs - windowStartUs;
+        if (windowUs < WINDOW_US)
+            return 0;
+
+        double actual = windowBytes * 8e6 / windowUs;
+        windowStartUs = ptsUs;
+        windowBytes = 0;
+
+        // bits left in the budget so far, spread over the payback period.
+        // Idle time may only bank so much, or the next burst runs away
+        double left = targetBitrate * ((ptsUs - startUs) / 1e6) - totalBytes * 8.0;
+        double desired = targetBitrate + left * 1e6 / PAYBACK_US;
+        desired = Math.max(0, Math.min(desired, targetBitrate * MAX_SCALE));
+        if (actual <= 0)
+            return 0;
+
+        // the output scales about linearly with the configured bitrate
+        double scale = Math.max(1 / MAX_SCALE, Math.min(MAX_SCALE, desired / actual));
+        int next = clamp((int) Math.min(Integer.MAX_VALUE, bitrate * scale));
+        if (Math.abs(next - bitrate) < bitrate * MIN_CHANGE)
+            return 0;
+        bitrate = next;
+        return next;
+    }
+
+    private int clamp(long bitrate) {
+        return (int) Math.max(minBitrate, Math.min(maxBitrate, bitrate));
+    }
+}
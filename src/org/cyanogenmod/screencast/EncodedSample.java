@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded sample copied out of a codec output buffer, so the codec can
+ * get the buffer back while the sample waits to be written. Obtained from a
+ * {@link SamplePool} and reference counted, every {@link #retain} must be
+ * matched by a {@link #release}.
+ */
+class EncodedSample {
+    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    int track;
+    // direct buffer holding the payload at [0, info.size)
+    final ByteBuffer data;
+    // System.nanoTime() when the sample was queued
+    long queuedNanos;
+
+    private final SamplePool pool;
+    private final AtomicInteger refs = new AtomicInteger();
+
+    // marker samples only, never written or released
+    EncodedSample() {
+        this(null, 0);
+    }
+
+    EncodedSample(SamplePool pool, int capacity) {
+        this.pool = pool;
+        data = capacity > 0 ? ByteBuffer.allocateDirect(capacity) : null;
+    }
+
+    void acquired() {
+        refs.set(1);
+    }
+
+    /**
+     * Copies the payload described by {@code info} out of {@code buffer}.
+     */
+    void set(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        this.track = track;
+        data.clear();
+        buffer.limit(info.offset + info.size);
+        buffer.position(info.offset);
+        data.put(buffer);
+        data.flip();
+        this.info.set(0, info.size, info.presentationTimeUs, info.flags);
+    }
+
+    EncodedSample retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    void release() {
+        int left = refs.decrementAndGet();
+        if (left == 0)
+            pool.recycle(this);
+        else if (left < 0)
+            throw new IllegalStateException("Sample released too often");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder running in asynchronous mode, as used by the recording pipeline.
+ * Mirrors the subset of {@link MediaCodec} the pipeline needs, so the
+ * pipeline runs against stand-ins as well as the real codecs.
+ */
+interface Encoder {
+    /**
+     * Receives the events of an encoder. All encoders of a recording call
+     * back on the same thread.
+     */
+    interface Callback {
+        void onInputBufferAvailable(Encoder encoder, int index);
+
+        /**
+         * @param info describes the output buffer. MediaCodec hands out a
+         *        new one every time, so it may be kept.
+         */
+        void onOutputBufferAvailable(Encoder encoder, int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(Encoder encoder, MediaFormat format);
+
+        void onError(Encoder encoder, Exception e);
+    }
+
+    /**
+     * Must be called before {@link #start}.
+     */
+    void setCallback(Callback callback);
+
+    void start();
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    /**
+     * Ends the input of an encoder fed by a surface.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * Asks for the next frame to be a keyframe. May be called from any thread.
+     */
+    void requestSyncFrame();
+
+    /**
+     * Changes the bitrate of a running video encoder. May be called from any
+     * thread.
+     */
+    void setVideoBitrate(int bitsPerSecond);
+
+    void stop();
+
+    void release();
+}
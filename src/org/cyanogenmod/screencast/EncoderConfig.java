@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * The video encoder setup worked out for a display mode. Working it out
+ * means parsing the media profiles and querying the codec, so it is kept in
+ * preferences per display size, density and rotation, and thrown away when
+ * the system is updated.
+ */
+class EncoderConfig {
+    private static final String PREFS = "encoder_config";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    final int width;
+    final int height;
+    final int frameRate;
+    // bitrates are picked within these for every recording
+    final int maxBitrate;
+    final int minBitrate;
+    // 0 for the encoder's default
+    final int profile;
+    final int level;
+
+    EncoderConfig(int width, int height, int frameRate, int maxBitrate, int minBitrate,
+            int profile, int level) {
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.maxBitrate = maxBitrate;
+        this.minBitrate = minBitrate;
+        this.profile = profile;
+        this.level = level;
+    }
+
+    static String key(int width, int height, int densityDpi, int rotation) {
+        return width + "x" + height + "@" + densityDpi + "/" + rotation;
+    }
+
+    /**
+     * @return the stored setup, or null if there is none for this system.
+     */
+    static EncoderConfig load(Context context, String key) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, 0);
+        if (!Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            // codecs and profiles may have changed with the system
+            prefs.edit().clear().putString(KEY_FINGERPRINT, Build.FINGERPRINT).apply();
+            return null;
+        }
+        String value = prefs.getString(key, null);
+        if (value == null)
+            return null;
+        try {
+            String[] f = value.split(",");
+            return new EncoderConfig(Integer.parseInt(f[0]), Integer.parseInt(f[1]),
+                    Integer.parseInt(f[2]), Integer.parseInt(f[3]), Integer.parseInt(f[4]),
+                    Integer.parseInt(f[5]), Integer.parseInt(f[6]));
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    void save(Context context, String key) {
+        context.getSharedPreferences(PREFS, 0).edit()
+                .putString(key, width + "," + height + "," + frameRate + "," + maxBitrate + ","
+                        + minBitrate + "," + profile + "," + level)
+                .apply();
+    }
+
+    EncoderConfig withoutProfile() {
+        return new EncoderConfig(width, height, frameRate, maxBitrate, minBitrate, 0, 0);
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " at " + frameRate + "fps, profile " + profile;
+    }
+}
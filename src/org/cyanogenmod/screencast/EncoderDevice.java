@@ -17,36 +17,43 @@
 package org.cyanogenmod.screencast;
 
 import android.content.Context;
+import android.graphics.Point;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
 import android.media.CamcorderProfile;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.text.TextUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
+import android.util.Range;
+import android.view.Display;
 import android.view.Surface;
 
-import org.xml.sax.Attributes;
-
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.StringReader;
-import java.util.ArrayList;
-
-import safesax.Element;
-import safesax.ElementListener;
-import safesax.Parsers;
-import safesax.RootElement;
 
 public abstract class EncoderDevice {
     final String LOGTAG = getClass().getSimpleName();
-    private MediaCodec venc;
+    private Encoder venc;
     int width;
     int height;
     Context context;
     private VirtualDisplay virtualDisplay;
+    private static final int FRAME_RATE = 30;
+    // identifies the display mode in the encoder config cache
+    private String configKey;
+    private boolean configCached;
+    // when the recording started, until the first frame is out
+    private volatile long startNanos;
+    // set up by prepare(), the recording starts when the display is attached
+    private Surface surface;
+    private Handler handler;
+    private EncoderConfig config;
+    private int configuredBitrate;
+    private final CallbackRelay relay = new CallbackRelay();
+    private volatile boolean attached;
+    private boolean warm;
 
     // Standard resolution tables, removed values that aren't multiples of 8
     private int validResolutions[][] = {
@@ -84,12 +91,53 @@ public abstract class EncoderDevice {
     public VirtualDisplay registerVirtualDisplay(Context context, String name, int originalWidth, int originalHeight, int densityDpi) {
         assert virtualDisplay == null;
         DisplayManager dm = (DisplayManager)context.getSystemService(Context.DISPLAY_SERVICE);
-        Surface surface = createDisplaySurface();
-        if (surface == null)
+        long start = System.nanoTime();
+        warm = surface != null;
+        if (!warm && !prepare(context, originalWidth, originalHeight, densityDpi))
             return null;
+        if (warm) {
+            // the bitrate settings may have changed since
+            int bitrate = Math.max(config.minBitrate, chooseBitrate(config.maxBitrate));
+            if (bitrate != configuredBitrate)
+                setVideoBitrate(bitrate);
+        }
+        startNanos = start;
+        attached = true;
+        final Encoder venc = this.venc;
+        final Encoder.Callback callback = onEncoderCreated(venc, handler);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                relay.setTarget(venc, callback);
+            }
+        });
         return virtualDisplay = dm.createVirtualDisplay(name, width, height, 1, surface, DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC | DisplayManager.VIRTUAL_DISPLAY_FLAG_SECURE);
     }
 
+    /**
+     * Sets up and starts the encoder ahead of the recording, so that
+     * {@link #registerVirtualDisplay} only has to attach the display. The
+     * recording settings may still change until then. Call {@link #stop} to
+     * let go of an encoder that is not needed after all.
+     *
+     * @return whether the encoder is ready
+     */
+    public boolean prepare(Context context, int originalWidth, int originalHeight, int densityDpi) {
+        assert surface == null;
+        DisplayManager dm = (DisplayManager)context.getSystemService(Context.DISPLAY_SERVICE);
+        int rotation = dm.getDisplay(Display.DEFAULT_DISPLAY).getRotation();
+        configKey = EncoderConfig.key(width, height, densityDpi, rotation);
+        surface = createDisplaySurface();
+        return surface != null;
+    }
+
+    /**
+     * @return whether the encoder was prepared before the recording started.
+     */
+    public boolean isWarm() {
+        return warm;
+    }
+
     public EncoderDevice(Context context, int width, int height) {
         this.context = context;
         this.width = width;
@@ -97,6 +145,23 @@ public abstract class EncoderDevice {
     }
 
     public void stop() {
+        if (venc != null && !attached) {
+            // prepared only, nothing to finish
+            try {
+                venc.stop();
+                venc.release();
+            }
+            catch (Exception e) {
+            }
+            venc = null;
+            if (handler != null)
+                handler.getLooper().quitSafely();
+            if (surface != null) {
+                surface.release();
+                surface = null;
+            }
+            return;
+        }
         if (venc != null) {
             try {
                 venc.signalEndOfInputStream();
@@ -111,7 +176,63 @@ public abstract class EncoderDevice {
         }
     }
 
-    private void destroyDisplaySurface(MediaCodec venc) {
+    /**
+     * Stops feeding the screen to the encoder, which stays set up, so that
+     * {@link #resume} is instant.
+     */
+    public void pause() {
+        VirtualDisplay virtualDisplay = this.virtualDisplay;
+        if (virtualDisplay != null)
+            virtualDisplay.setSurface(null);
+    }
+
+    /**
+     * Feeds the screen to the encoder again after {@link #pause}, starting
+     * with a keyframe.
+     */
+    public void resume() {
+        VirtualDisplay virtualDisplay = this.virtualDisplay;
+        if (virtualDisplay == null)
+            return;
+        virtualDisplay.setSurface(surface);
+        requestSyncFrame();
+    }
+
+    /**
+     * Asks the video encoder to make the next frame a keyframe. May be
+     * called from any thread.
+     */
+    public void requestSyncFrame() {
+        Encoder venc = this.venc;
+        if (venc != null)
+            venc.requestSyncFrame();
+    }
+
+    /**
+     * Changes the bitrate of the running video encoder. May be called from
+     * any thread.
+     */
+    public void setVideoBitrate(int bitsPerSecond) {
+        Encoder venc = this.venc;
+        if (venc != null)
+            venc.setVideoBitrate(bitsPerSecond);
+    }
+
+    /**
+     * @return the bitrate to start the video encoder with, at most
+     *         {@code maxBitrate} which is the most the device supports.
+     */
+    protected int chooseBitrate(int maxBitrate) {
+        return maxBitrate;
+    }
+
+    /**
+     * Adds to the format the video encoder is configured with.
+     */
+    protected void configureVideoFormat(MediaFormat video) {
+    }
+
+    private void destroyDisplaySurface(Encoder venc) {
         if (venc == null)
             return;
         // release this surface
@@ -133,44 +254,81 @@ public abstract class EncoderDevice {
         }
     }
 
-    abstract class EncoderRunnable implements Runnable {
-        MediaCodec venc;
-        public EncoderRunnable(MediaCodec venc) {
-            this.venc = venc;
+    /**
+     * Lets go of the encoder, the display and the encoder thread once the
+     * recording is over. Called on the encoder thread by the callback
+     * returned from {@link #onEncoderCreated}.
+     */
+    final void releaseEncoder(Encoder venc, Handler handler) {
+        destroyDisplaySurface(venc);
+        handler.getLooper().quitSafely();
+    }
+
+    // Hands the encoder events on to the callback of the recording once it
+    // has started. Until then the encoder is idle, and whatever it does put
+    // out isn't part of the recording. Only used on the encoder thread.
+    private class CallbackRelay implements Encoder.Callback {
+        private Encoder.Callback target;
+        private MediaFormat format;
+        private Exception error;
+
+        void setTarget(Encoder codec, Encoder.Callback target) {
+            this.target = target;
+            if (format != null)
+                target.onOutputFormatChanged(codec, format);
+            if (error != null)
+                target.onError(codec, error);
         }
 
-        abstract void encode() throws Exception;
-        protected void cleanup() {
-            destroyDisplaySurface(venc);
-            venc = null;
+        @Override
+        public void onInputBufferAvailable(Encoder codec, int index) {
+            if (target != null)
+                target.onInputBufferAvailable(codec, index);
         }
 
         @Override
-        final public void run() {
-            try {
-                encode();
+        public void onOutputBufferAvailable(Encoder codec, int index, MediaCodec.BufferInfo info) {
+            if (target == null) {
+                codec.releaseOutputBuffer(index);
+                return;
             }
-            catch (Exception e) {
-                Log.e(LOGTAG, "Encoder error", e);
+            if (startNanos != 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                Log.i(LOGTAG, "First frame after " + (System.nanoTime() - startNanos) / 1000000
+                        + "ms, " + (warm ? "warm" : "cold") + " start, "
+                        + (configCached ? "cached" : "new") + " encoder config");
+                startNanos = 0;
             }
-            cleanup();
-            Log.i(LOGTAG, "=======ENCODING COMPLETE=======");
+            target.onOutputBufferAvailable(codec, index, info);
         }
-    }
 
-    protected abstract EncoderRunnable onSurfaceCreated(MediaCodec venc);
+        @Override
+        public void onOutputFormatChanged(Encoder codec, MediaFormat format) {
+            if (target != null)
+                target.onOutputFormatChanged(codec, format);
+            else
+                this.format = format;
+        }
 
-    private static class VideoEncoderCap {
-        int maxFrameWidth;
-        int maxFrameHeight;
-        int maxBitRate;
-        public VideoEncoderCap(Attributes attributes) {
-            maxFrameWidth = Integer.valueOf(attributes.getValue("maxFrameWidth"));
-            maxFrameHeight = Integer.valueOf(attributes.getValue("maxFrameHeight"));
-            maxBitRate = Integer.valueOf(attributes.getValue("maxBitRate"));
+        @Override
+        public void onError(Encoder codec, Exception e) {
+            if (target != null) {
+                target.onError(codec, e);
+                return;
+            }
+            Log.e(LOGTAG, "Idle encoder error", e);
+            error = e;
         }
     }
 
+    /**
+     * Called when the recording starts, with the running video encoder.
+     *
+     * @param handler the encoder thread, all encoder callbacks come there
+     * @return the callback receiving the encoder output from now on. Once the
+     *         recording is over it calls {@link #releaseEncoder}.
+     */
+    protected abstract Encoder.Callback onEncoderCreated(Encoder venc, Handler handler);
+
     public final Surface createDisplaySurface() {
         if (venc != null) {
             // signal any old crap to end
@@ -182,36 +340,68 @@ public abstract class EncoderDevice {
             venc = null;
         }
 
+        long start = System.nanoTime();
+        EncoderConfig config = configKey != null ? EncoderConfig.load(context, configKey) : null;
+        configCached = config != null;
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createEncoderByType("video/avc");
+        } catch (IOException e) {
+            Log.wtf(LOGTAG, "Can't create AVC encoder!", e);
+        }
+        if (config == null) {
+            config = computeConfig(codec);
+            if (configKey != null)
+                config.save(context, configKey);
+        }
+        width = config.width;
+        height = config.height;
+        int bitrate = Math.max(config.minBitrate, chooseBitrate(config.maxBitrate));
+
+        // create a surface from the encoder
+        Log.i(LOGTAG, "Starting encoder at " + config + (configCached ? " (cached)" : ""));
+        HandlerThread thread = new HandlerThread("Encoder");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        Encoder venc = new MediaCodecEncoder(codec, handler);
+        try {
+            codec.configure(createVideoFormat(config, bitrate), null, null,
+                    MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
+        catch (RuntimeException e) {
+            // some encoders list profiles they won't configure
+            if (config.profile == 0)
+                throw e;
+            Log.w(LOGTAG, "Encoder rejected the profile, using the default", e);
+            config = config.withoutProfile();
+            if (configKey != null)
+                config.save(context, configKey);
+            codec.reset();
+            venc = new MediaCodecEncoder(codec, handler);
+            codec.configure(createVideoFormat(config, bitrate), null, null,
+                    MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
+        venc.setCallback(relay);
+        this.config = config;
+        configuredBitrate = bitrate;
+        Surface surface = codec.createInputSurface();
+        venc.start();
+        this.venc = venc;
+        Log.i(LOGTAG, "Encoder ready after " + (System.nanoTime() - start) / 1000000 + "ms");
+        return surface;
+    }
+
+    // works out the size, bitrates and profile for the display from the
+    // media profiles and the capabilities of the encoder
+    private EncoderConfig computeConfig(MediaCodec venc) {
+        int width = this.width;
+        int height = this.height;
         int maxWidth;
         int maxHeight;
         int bitrate;
 
         try {
-            File mediaProfiles = new File("/system/etc/media_profiles.xml");
-            FileInputStream fin = new FileInputStream(mediaProfiles);
-            byte[] bytes = new byte[(int)mediaProfiles.length()];
-            fin.read(bytes);
-            String xml = new String(bytes);
-            RootElement root = new RootElement("MediaSettings");
-            Element encoder = root.requireChild("VideoEncoderCap");
-            final ArrayList<VideoEncoderCap> encoders = new ArrayList<VideoEncoderCap>();
-            encoder.setElementListener(new ElementListener() {
-                @Override
-                public void end() {
-                }
-
-                @Override
-                public void start(Attributes attributes) {
-                    if (!TextUtils.equals(attributes.getValue("name"), "h264"))
-                        return;
-                    encoders.add(new VideoEncoderCap(attributes));
-                }
-            });
-            Parsers.parse(new StringReader(xml), root.getContentHandler());
-            if (encoders.size() != 1)
-                throw new Exception("derp");
-
-            VideoEncoderCap v = encoders.get(0);
+            VideoEncoderCap v = VideoEncoderCap.get(context);
             maxWidth = v.maxFrameWidth;
             maxHeight = v.maxFrameHeight;
             bitrate = v.maxBitRate;
@@ -268,6 +458,26 @@ public abstract class EncoderDevice {
             }
         }
 
+        ResolutionSelector selector = null;
+        try {
+            selector = new ResolutionSelector(new CodecCapabilities(
+                    venc.getCodecInfo().getCapabilitiesForType("video/avc")), FRAME_RATE);
+            Point size = selector.select(width, height, max, min);
+            if (size != null) {
+                width = size.x;
+                height = size.y;
+                resizeNeeded = false;
+            }
+            else {
+                Log.w(LOGTAG, "No size fits the encoder capabilities");
+            }
+        }
+        catch (Exception e) {
+            // the standard tables below still apply
+            Log.w(LOGTAG, "Can't query the encoder capabilities", e);
+            selector = null;
+        }
+
         if (resizeNeeded) {
             boolean matched = false;
             for (int[] resolution: validResolutions) {
@@ -295,28 +505,77 @@ public abstract class EncoderDevice {
             }
         }
 
+        if (selector == null)
+            return new EncoderConfig(width, height, FRAME_RATE, bitrate, 0, 0, 0);
+        MediaCodecInfo.CodecProfileLevel profile = selector.selectProfile();
+        return new EncoderConfig(width, height, FRAME_RATE, selector.clampBitrate(bitrate),
+                selector.getMinBitrate(), profile != null ? profile.profile : 0,
+                profile != null ? profile.level : 0);
+    }
 
-        MediaFormat video = MediaFormat.createVideoFormat("video/avc", width, height);
+    // what ResolutionSelector needs from the capabilities MediaCodec reports
+    private static class CodecCapabilities implements ResolutionSelector.Capabilities {
+        private final MediaCodecInfo.CodecCapabilities capabilities;
+        private final MediaCodecInfo.VideoCapabilities video;
 
-        video.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        CodecCapabilities(MediaCodecInfo.CodecCapabilities capabilities) {
+            this.capabilities = capabilities;
+            video = capabilities.getVideoCapabilities();
+        }
 
-        video.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
-        video.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        video.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 3);
+        @Override
+        public int getWidthAlignment() {
+            return video.getWidthAlignment();
+        }
 
-        // create a surface from the encoder
-        Log.i(LOGTAG, "Starting encoder at " + width + "x" + height);
-        try {
-            venc = MediaCodec.createEncoderByType("video/avc");
-        } catch (IOException e) {
-            Log.wtf(LOGTAG, "Can't create AVC encoder!", e);
+        @Override
+        public int getHeightAlignment() {
+            return video.getHeightAlignment();
         }
-        venc.configure(video, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        Surface surface = venc.createInputSurface();
-        venc.start();
 
-        EncoderRunnable runnable = onSurfaceCreated(venc);
-        new Thread(runnable, "Encoder").start();
-        return surface;
+        @Override
+        public boolean areSizeAndRateSupported(int width, int height, double frameRate) {
+            return video.areSizeAndRateSupported(width, height, frameRate);
+        }
+
+        @Override
+        public double getAchievableFrameRate(int width, int height) {
+            Range<Double> achievable = video.getAchievableFrameRatesFor(width, height);
+            return achievable != null ? achievable.getUpper() : Double.NaN;
+        }
+
+        @Override
+        public int getMinBitrate() {
+            return video.getBitrateRange().getLower();
+        }
+
+        @Override
+        public int getMaxBitrate() {
+            return video.getBitrateRange().getUpper();
+        }
+
+        @Override
+        public int getMaxLevel(int profile) {
+            int level = 0;
+            for (MediaCodecInfo.CodecProfileLevel pl : capabilities.profileLevels) {
+                if (pl.profile == profile)
+                    level = Math.max(level, pl.level);
+            }
+            return level;
+        }
+    }
+
+    private MediaFormat createVideoFormat(EncoderConfig config, int bitrate) {
+        MediaFormat video = MediaFormat.createVideoFormat("video/avc", config.width, config.height);
+        video.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        video.setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate);
+        video.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        video.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 3);
+        if (config.profile != 0) {
+            video.setInteger(MediaFormat.KEY_PROFILE, config.profile);
+            video.setInteger(MediaFormat.KEY_LEVEL, config.level);
+        }
+        configureVideoFormat(video);
+        return video;
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link SampleSink} handing every sample to several sinks, e.g. a file and
+ * a live stream from the same encode. The payload is not copied: each sink
+ * gets its own reference to the same sample, so sinks must only read it.
+ * Every sink is fed from its own queue and thread, and its policy decides
+ * what happens when it falls behind, so a slow sink never holds up the
+ * others unless it is allowed to.
+ */
+class FanOutSink implements SampleSink {
+    private static final String LOGTAG = "FanOutSink";
+    private static final int QUEUE_CAPACITY = 128;
+    private static final long STALL_PARK_NANOS = 100000L;
+    private static final long IDLE_PARK_NANOS = 10000000L;
+
+    /** A full queue blocks the encoder, nothing is lost. */
+    static final int POLICY_BLOCK = 0;
+    /** A full queue drops samples up to the next video keyframe. */
+    static final int POLICY_DROP = 1;
+
+    // marks the end of the stream in the queues
+    private static final EncodedSample END = new EncodedSample();
+
+    private final ArrayList<Branch> branches = new ArrayList<Branch>();
+
+    private static class Branch implements Runnable {
+        final SampleSink sink;
+        final int policy;
+        final SampleQueue queue = new SampleQueue(QUEUE_CAPACITY);
+        Thread thread;
+        volatile boolean parked;
+        // producer side only
+        boolean dropping;
+        long dropped;
+
+        Branch(SampleSink sink, int policy) {
+            this.sink = sink;
+            this.policy = policy;
+        }
+
+        void enqueue(EncodedSample sample) {
+            if (!queue.offer(sample)) {
+                do {
+                    LockSupport.unpark(thread);
+                    LockSupport.parkNanos(STALL_PARK_NANOS);
+                } while (!queue.offer(sample));
+            }
+            if (parked)
+                LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            // after a failure samples are still drained, so the producer
+            // never blocks on a dead sink
+            boolean failed = false;
+            while (true) {
+                EncodedSample sample = queue.poll();
+                if (sample == null) {
+                    parked = true;
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    parked = false;
+                    continue;
+                }
+                if (sample == END)
+                    break;
+                if (failed) {
+                    sample.release();
+                    continue;
+                }
+                try {
+                    sink.write(sample);
+                }
+                catch (Exception e) {
+                    Log.e(LOGTAG, "Sink error", e);
+                    failed = true;
+                }
+            }
+            sink.finish();
+        }
+    }
+
+    /**
+     * Adds a sink. Must be called before {@link #start}.
+     *
+     * @param policy {@link #POLICY_BLOCK} or {@link #POLICY_DROP}
+     */
+    public void addSink(SampleSink sink, int policy) {
+        branches.add(new Branch(sink, policy));
+    }
+
+    @Override
+    public void start(MediaFormat[] formats) throws Exception {
+        for (int i = 0; i < branches.size(); i++) {
+            Branch branch = branches.get(i);
+            branch.sink.start(formats);
+            branch.thread = new Thread(branch, "FanOut" + i);
+            branch.thread.start();
+        }
+    }
+
+    @Override
+    public void write(EncodedSample sample) {
+        boolean keyframe = sample.track == Recorder.TRACK_VIDEO
+                && (sample.info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        for (Branch branch : branches) {
+            if (branch.policy == POLICY_BLOCK) {
+                branch.enqueue(sample.retain());
+                continue;
+            }
+            if (branch.dropping && !keyframe) {
+                branch.dropped++;
+                continue;
+            }
+            branch.dropping = !branch.queue.offer(sample.retain());
+            if (branch.dropping) {
+                sample.release();
+                branch.dropped++;
+            }
+            else if (branch.parked) {
+                LockSupport.unpark(branch.thread);
+            }
+        }
+        sample.release();
+    }
+
+    /**
+     * Lets every sink write out what it has queued, then finishes it.
+     */
+    @Override
+    public void finish() {
+        for (Branch branch : branches) {
+            if (branch.thread == null) {
+                // never started
+                branch.sink.finish();
+                continue;
+            }
+            branch.enqueue(END);
+            if (branch.dropped > 0)
+                Log.i(LOGTAG, branch.sink + " dropped " + branch.dropped + " samples");
+        }
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * {@link Muxer} writing fragmented mp4 (an empty moov followed by moof/mdat
+ * pairs) for H.264 and AAC tracks. Unlike {@link Mp4Muxer} nothing is held
+ * back until {@link #stop}: samples are written out and synced every flush
+ * interval, so the file stays playable up to the last fragment if the
+ * process dies. {@link #recover} cuts off a torn tail left behind by that.
+ */
+class FragmentedMp4Muxer implements Muxer {
+    private static final String LOGTAG = "FragmentedMp4Muxer";
+    // all tracks use microseconds, like the codecs
+    private static final int TIMESCALE = 1000000;
+    private static final int MOVIE_TIMESCALE = 1000;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final long flushIntervalUs;
+    private final ArrayList<Track> tracks = new ArrayList<Track>();
+    private ByteBuffer box = ByteBuffer.allocate(64 * 1024);
+    private int sequence;
+    private long fragmentStartUs = -1;
+
+    private static class Track {
+        final MediaFormat format;
+        final boolean video;
+        // pending samples, video converted to length prefixed NAL units
+        ByteBuffer data = ByteBuffer.allocate(256 * 1024);
+        long[] times = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        int count;
+        long lastDurationUs;
+
+        Track(MediaFormat format) {
+            this.format = format;
+            video = format.getString(MediaFormat.KEY_MIME).startsWith("video/");
+            lastDurationUs = video ? 1000000L / 30
+                    : 1024L * 1000000L / format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        }
+    }
+
+    /**
+     * @param flushIntervalUs how much media to buffer before a fragment is
+     *        written out and synced
+     */
+    public FragmentedMp4Muxer(String path, long flushIntervalUs) throws IOException {
+        out = new FileOutputStream(path);
+        channel = out.getChannel();
+        this.flushIntervalUs = flushIntervalUs;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        tracks.add(new Track(format));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        box.clear();
+        int ftyp = begin("ftyp");
+        putType("iso5");
+        box.putInt(512);
+        putType("iso5");
+        putType("iso6");
+        putType("mp41");
+        end(ftyp);
+        writeMoov();
+        write();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        long ptsUs = info.presentationTimeUs;
+        if (fragmentStartUs < 0)
+            fragmentStartUs = ptsUs;
+        else if (ptsUs - fragmentStartUs >= flushIntervalUs)
+            flush();
+
+        Track track = tracks.get(trackIndex);
+        if (track.count == track.times.length) {
+            int size = track.count * 2;
+            track.times = Arrays.copyOf(track.times, size);
+            track.sizes = Arrays.copyOf(track.sizes, size);
+            track.flags = Arrays.copyOf(track.flags, size);
+        }
+        int start = track.data.position();
+        track.data = ensure(track.data, info.size + 64);
+        if (track.video) {
+            track.data = appendNalUnits(track.data, buffer, info.offset, info.size);
+        }
+        else {
+            ByteBuffer src = buffer.duplicate();
+            src.limit(info.offset + info.size).position(info.offset);
+            track.data.put(src);
+        }
+        boolean sync = !track.video || (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        track.times[track.count] = ptsUs;
+        track.sizes[track.count] = track.data.position() - start;
+        track.flags[track.count] = sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        track.count++;
+    }
+
+    @Override
+    public void stop() {
+        flush();
+    }
+
+    @Override
+    public void release() {
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Writes the pending samples as one moof/mdat pair and syncs the file.
+     */
+    private void flush() {
+        int pending = 0;
+        for (Track track : tracks)
+            pending += track.data.position();
+        if (pending == 0)
+            return;
+
+        box.clear();
+        int moof = begin("moof");
+        int mfhd = beginFull("mfhd", 0, 0);
+        box.putInt(++sequence);
+        end(mfhd);
+        int[] dataOffsets = new int[tracks.size()];
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            if (track.count == 0)
+                continue;
+            int traf = begin("traf");
+            // default-base-is-moof
+            int tfhd = beginFull("tfhd", 0, 0x020000);
+            box.putInt(i + 1);
+            end(tfhd);
+            int tfdt = beginFull("tfdt", 1, 0);
+            box.putLong(track.times[0]);
+            end(tfdt);
+            // data offset, duration, size and flags present
+            int trun = beginFull("trun", 0, 0x000701);
+            box.putInt(track.count);
+            dataOffsets[i] = box.position();
+            box.putInt(0);
+            for (int s = 0; s < track.count; s++) {
+                long duration = s + 1 < track.count
+                        ? track.times[s + 1] - track.times[s] : track.lastDurationUs;
+                if (duration > 0)
+                    track.lastDurationUs = duration;
+                box.putInt((int) Math.max(duration, 0));
+                box.putInt(track.sizes[s]);
+                box.putInt(track.flags[s]);
+            }
+            end(trun);
+            end(traf);
+        }
+        end(moof);
+
+        // samples follow the mdat header, one track after the other
+        int offset = box.position() - moof + 8;
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            if (track.count == 0)
+                continue;
+            box.putInt(dataOffsets[i], offset);
+            offset += track.data.position();
+        }
+        box.putInt(8 + pending);
+        putType("mdat");
+        write();
+        for (Track track : tracks) {
+            track.data.flip();
+            writeFully(track.data);
+            track.data.clear();
+            track.count = 0;
+        }
+        try {
+            channel.force(false);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Can't sync fragment", e);
+        }
+        fragmentStartUs = -1;
+    }
+
+    private void writeMoov() {
+        int moov = begin("moov");
+        int mvhd = beginFull("mvhd", 0, 0);
+        box.putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt(0);
+        box.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0);
+        putMatrix();
+        for (int i = 0; i < 6; i++)
+            box.putInt(0);
+        box.putInt(tracks.size() + 1);
+        end(mvhd);
+
+        for (int i = 0; i < tracks.size(); i++)
+            writeTrak(i + 1, tracks.get(i));
+
+        int mvex = begin("mvex");
+        for (int i = 0; i < tracks.size(); i++) {
+            int trex = beginFull("trex", 0, 0);
+            box.putInt(i + 1).putInt(1).putInt(0).putInt(0).putInt(0);
+            end(trex);
+        }
+        end(mvex);
+        end(moov);
+    }
+
+    private void writeTrak(int id, Track track) {
+        MediaFormat format = track.format;
+        int trak = begin("trak");
+        // enabled, in movie
+        int tkhd = beginFull("tkhd", 0, 3);
+        box.putInt(0).putInt(0).putInt(id).putInt(0).putInt(0).putLong(0);
+        box.putShort((short) 0).putShort((short) 0);
+        box.putShort((short) (track.video ? 0 : 0x0100)).putShort((short) 0);
+        putMatrix();
+        if (track.video) {
+            box.putInt(format.getInteger(MediaFormat.KEY_WIDTH) << 16);
+            box.putInt(format.getInteger(MediaFormat.KEY_HEIGHT) << 16);
+        }
+        else {
+            box.putInt(0).putInt(0);
+        }
+        end(tkhd);
+
+        int mdia = begin("mdia");
+        int mdhd = beginFull("mdhd", 0, 0);
+        // "und" language
+        box.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putShort((short) 0x55C4).putShort((short) 0);
+        end(mdhd);
+        int hdlr = beginFull("hdlr", 0, 0);
+        box.putInt(0);
+        putType(track.video ? "vide" : "soun");
+        box.putInt(0).putInt(0).putInt(0);
+        box.put((track.video ? "VideoHandler" : "SoundHandler").getBytes()).put((byte) 0);
+        end(hdlr);
+
+        int minf = begin("minf");
+        if (track.video) {
+            int vmhd = beginFull("vmhd", 0, 1);
+            box.putLong(0);
+            end(vmhd);
+        }
+        else {
+            int smhd = beginFull("smhd", 0, 0);
+            box.putInt(0);
+            end(smhd);
+        }
+        int dinf = begin("dinf");
+        int dref = beginFull("dref", 0, 0);
+        box.putInt(1);
+        // media is in this file
+        end(beginFull("url ", 0, 1));
+        end(dref);
+        end(dinf);
+
+        int stbl = begin("stbl");
+        int stsd = beginFull("stsd", 0, 0);
+        box.putInt(1);
+        if (track.video)
+            writeAvc1(format);
+        else
+            writeMp4a(format);
+        end(stsd);
+        // the samples are all described in the fragments
+        int stts = beginFull("stts", 0, 0);
+        box.putInt(0);
+        end(stts);
+        int stsc = beginFull("stsc", 0, 0);
+        box.putInt(0);
+        end(stsc);
+        int stsz = beginFull("stsz", 0, 0);
+        box.putInt(0).putInt(0);
+        end(stsz);
+        int stco = beginFull("stco", 0, 0);
+        box.putInt(0);
+        end(stco);
+        end(stbl);
+        end(minf);
+        end(mdia);
+        end(trak);
+    }
+
+    private void writeAvc1(MediaFormat format) {
+        ByteBuffer sps = null;
+        ByteBuffer pps = null;
+        // the parameter sets come in csd-0/csd-1 with start codes, in
+        // whatever split the encoder chose
+        for (String key : new String[] { "csd-0", "csd-1" }) {
+            if (!format.containsKey(key))
+                continue;
+            ByteBuffer csd = format.getByteBuffer(key).duplicate();
+            int end = csd.limit();
+            int nal = nextNalUnit(csd, csd.position(), end);
+            while (nal >= 0) {
+                int next = nextNalUnit(csd, nal, end);
+                int nalEnd = next < 0 ? end : startCodeStart(csd, next);
+                ByteBuffer unit = csd.duplicate();
+                unit.limit(nalEnd).position(nal);
+                int type = csd.get(nal) & 0x1f;
+                if (type == 7)
+                    sps = unit.slice();
+                else if (type == 8)
+                    pps = unit.slice();
+                nal = next;
+            }
+        }
+        if (sps == null || pps == null)
+            throw new IllegalStateException("No SPS/PPS in " + format);
+
+        int avc1 = begin("avc1");
+        box.putInt(0).putShort((short) 0).putShort((short) 1);
+        box.putInt(0).putInt(0).putInt(0).putInt(0);
+        box.putShort((short) format.getInteger(MediaFormat.KEY_WIDTH));
+        box.putShort((short) format.getInteger(MediaFormat.KEY_HEIGHT));
+        box.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1);
+        box.put(new byte[32]);
+        box.putShort((short) 0x0018).putShort((short) -1);
+        int avcC = begin("avcC");
+        box.put((byte) 1).put(sps.get(1)).put(sps.get(2)).put(sps.get(3));
+        // 4 byte NAL unit lengths, one SPS
+        box.put((byte) 0xff).put((byte) 0xe1);
+        box.putShort((short) sps.remaining()).put(sps.duplicate());
+        box.put((byte) 1);
+        box.putShort((short) pps.remaining()).put(pps.duplicate());
+        end(avcC);
+        end(avc1);
+    }
+
+    private void writeMp4a(MediaFormat format) {
+        ByteBuffer config = format.getByteBuffer("csd-0").duplicate();
+        int rate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int mp4a = begin("mp4a");
+        box.putInt(0).putShort((short) 0).putShort((short) 1);
+        box.putInt(0).putInt(0);
+        box.putShort((short) format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)).putShort((short) 16);
+        box.putInt(0).putInt(rate << 16);
+        int esds = beginFull("esds", 0, 0);
+        int configSize = config.remaining();
+        // ES_Descriptor
+        box.put((byte) 0x03).put((byte) (3 + 2 + 13 + 2 + configSize + 3));
+        box.putShort((short) 0).put((byte) 0);
+        // DecoderConfigDescriptor, AAC audio stream
+        box.put((byte) 0x04).put((byte) (13 + 2 + configSize));
+        box.put((byte) 0x40).put((byte) 0x15);
+        box.put((byte) 0).putShort((short) 0);
+        int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+                ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        box.putInt(bitrate).putInt(bitrate);
+        // DecoderSpecificInfo
+        box.put((byte) 0x05).put((byte) configSize).put(config);
+        // SLConfigDescriptor
+        box.put((byte) 0x06).put((byte) 1).put((byte) 2);
+        end(esds);
+        end(mp4a);
+    }
+
+    // converts Annex B start codes into 4 byte NAL unit lengths
+    private static ByteBuffer appendNalUnits(ByteBuffer dst, ByteBuffer src, int offset, int size) {
+        int end = offset + size;
+        int nal = nextNalUnit(src, offset, end);
+        if (nal < 0) {
+            // already length prefixed
+            ByteBuffer in = src.duplicate();
+            in.limit(end).position(offset);
+            return ensure(dst, size).put(in);
+        }
+        while (nal >= 0) {
+            int next = nextNalUnit(src, nal, end);
+            int nalEnd = next < 0 ? end : startCodeStart(src, next);
+            dst = ensure(dst, nalEnd - nal + 4);
+            dst.putInt(nalEnd - nal);
+            ByteBuffer in = src.duplicate();
+            in.limit(nalEnd).position(nal);
+            dst.put(in);
+            nal = next;
+        }
+        return dst;
+    }
+
+    // returns the index just past the next 00 00 01 start code at or after
+    // from, or -1
+    private static int nextNalUnit(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1)
+                return i + 3;
+        }
+        return -1;
+    }
+
+    // start of the 3 or 4 byte start code ending just before nal
+    private static int startCodeStart(ByteBuffer buffer, int nal) {
+        int start = nal - 3;
+        return start > 0 && buffer.get(start - 1) == 0 ? start - 1 : start;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra)
+            return buffer;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private int begin(String type) {
+        box = ensure(box, 1024);
+        int start = box.position();
+        box.putInt(0);
+        putType(type);
+        return start;
+    }
+
+    private int beginFull(String type, int version, int flags) {
+        int start = begin(type);
+        box.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private void end(int start) {
+        box.putInt(start, box.position() - start);
+    }
+
+    private void putType(String type) {
+        for (int i = 0; i < 4; i++)
+            box.put((byte) type.charAt(i));
+    }
+
+    private void putMatrix() {
+        box.putInt(0x00010000).putInt(0).putInt(0);
+        box.putInt(0).putInt(0x00010000).putInt(0);
+        box.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private void write() {
+        box.flip();
+        writeFully(box);
+        box.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Can't write fragment", e);
+        }
+    }
+
+    /**
+     * Truncates a fragmented mp4 left behind by a killed recording after its
+     * last complete moof/mdat pair.
+     *
+     * @return the number of bytes cut off, or -1 if the file has no moov and
+     *         can't be played at all
+     */
+    public static long recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            long pos = 0;
+            long good = 0;
+            boolean moov = false;
+            boolean inFragment = false;
+            while (pos + 8 <= length) {
+                raf.seek(pos);
+                long size = raf.readInt() & 0xffffffffL;
+                int type = raf.readInt();
+                if (size == 1) {
+                    if (pos + 16 > length)
+                        break;
+                    size = raf.readLong();
+                }
+                if (size < 8 || pos + size > length)
+                    break;
+                pos += size;
+                if (type == fourcc("moof")) {
+                    // only complete once its mdat is
+                    inFragment = true;
+                    continue;
+                }
+                if (type == fourcc("moov"))
+                    moov = true;
+                if (type == fourcc("mdat") || !inFragment)
+                    good = pos;
+                inFragment = false;
+            }
+            if (!moov)
+                return -1;
+            if (good < length) {
+                Log.w(LOGTAG, "Truncating " + file + " from " + length + " to " + good + " bytes");
+                raf.setLength(good);
+            }
+            return length - good;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
@@ -90,6 +90,24 @@ public class MainActivity extends Activity {
         super.onResume();
         mHasAudioPermission = hasPermissions();
         refreshState();
+        if (getResources().getBoolean(R.bool.config_warmStandby)
+                && !getSharedPreferences(ScreencastService.PREFS, 0)
+                        .getBoolean(ScreencastService.KEY_RECORDING, false)) {
+            // get the encoder ready, a start is likely from here
+            Intent intent = new Intent("org.cyanogenmod.ACTION_PREPARE_SCREENCAST");
+            intent.putExtra(ScreencastService.EXTRA_WITHAUDIO, mChkWithAudio.isChecked());
+            startService(intent.setClass(this, ScreencastService.class));
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (getResources().getBoolean(R.bool.config_warmStandby)) {
+            // no-op if the recording has just been started with it
+            startService(new Intent("org.cyanogenmod.ACTION_UNPREPARE_SCREENCAST")
+                    .setClass(this, ScreencastService.class));
+        }
     }
 
     @Override
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Encoder} backed by a {@link MediaCodec}.
+ */
+class MediaCodecEncoder implements Encoder {
+    private static final String LOGTAG = "MediaCodecEncoder";
+
+    private final MediaCodec codec;
+    private Callback callback;
+
+    /**
+     * Takes over a codec that isn't configured yet, as it only runs in
+     * asynchronous mode if the callback is set first.
+     *
+     * @param handler the callbacks come on its thread
+     */
+    public MediaCodecEncoder(MediaCodec codec, Handler handler) {
+        this.codec = codec;
+        codec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(MediaCodecEncoder.this, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(MediaCodecEncoder.this, index, info);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(MediaCodecEncoder.this, format);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(MediaCodecEncoder.this, e);
+            }
+        }, handler);
+    }
+
+    /**
+     * Creates an encoder configured for {@code format}.
+     */
+    public static MediaCodecEncoder create(MediaFormat format, Handler handler) throws IOException {
+        MediaCodec codec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+        MediaCodecEncoder encoder = new MediaCodecEncoder(codec, handler);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return encoder;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void start() {
+        codec.start();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        codec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(params);
+        }
+        catch (Exception e) {
+            Log.w(LOGTAG, "Can't request sync frame", e);
+        }
+    }
+
+    @Override
+    public void setVideoBitrate(int bitsPerSecond) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitsPerSecond);
+        try {
+            codec.setParameters(params);
+        }
+        catch (Exception e) {
+            Log.w(LOGTAG, "Can't change bitrate", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        codec.stop();
+    }
+
+    @Override
+    public void release() {
+        codec.release();
+    }
+}
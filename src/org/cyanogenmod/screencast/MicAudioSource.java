@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioSource} reading mono PCM from the microphone.
+ */
+class MicAudioSource implements AudioSource {
+    private final AudioRecord record;
+
+    public MicAudioSource() {
+        int bufferSize = 1024 * 30;
+        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        if (bufferSize < minBufferSize)
+            bufferSize = ((minBufferSize / 1024) + 1) * 1024 * 2;
+        record = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return record.getState() == AudioRecord.STATE_INITIALIZED;
+    }
+
+    @Override
+    public void start() {
+        record.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        return record.read(buffer, size);
+    }
+
+    @Override
+    public void stop() {
+        record.stop();
+    }
+
+    @Override
+    public void release() {
+        record.release();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Muxer} backed by the platform MP4 {@link MediaMuxer}.
+ */
+class Mp4Muxer implements Muxer {
+    private final MediaMuxer muxer;
+
+    public Mp4Muxer(String path) throws IOException {
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        muxer.writeSampleData(trackIndex, buffer, info);
+    }
+
+    @Override
+    public void stop() {
+        muxer.stop();
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+}
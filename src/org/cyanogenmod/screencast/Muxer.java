@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Container writer used by the recording pipeline. Mirrors the subset of
+ * {@link android.media.MediaMuxer} the pipeline needs so the output format
+ * can be swapped out without touching the encoders.
+ */
+interface Muxer {
+    /**
+     * @return the index to pass to {@link #writeSampleData} for this track.
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer stage in front of a {@link Muxer}. Encoder threads hand
+ * over their pooled samples through a {@link SampleQueue}, and only the
+ * "Muxer" thread ever writes to the file. Samples are written interleaved in
+ * presentation time order across tracks.
+ */
+class MuxerWriter implements SampleSink, Runnable {
+    private static final String LOGTAG = "MuxerWriter";
+    private static final int QUEUE_CAPACITY = 256;
+    // longest a track waits for the others before its samples are written
+    // regardless, e.g. audio while the screen is static and no video comes
+    private static final long MAX_INTERLEAVE_US = 500000L;
+    private static final long STALL_PARK_NANOS = 100000L;
+    private static final long IDLE_PARK_NANOS = 10000000L;
+
+    // marks the end of the stream in the queue
+    private static final EncodedSample END = new EncodedSample();
+
+    private final Muxer muxer;
+    private final SampleQueue queue = new SampleQueue(QUEUE_CAPACITY);
+    // muxer track index of each pipeline track
+    private int[] tracks;
+    private ArrayDeque<EncodedSample>[] pending;
+    private final PipelineStats stats = new PipelineStats("MuxerWriter");
+    private final OnFinishedListener onFinished;
+    private Thread thread;
+    private volatile boolean parked;
+    private boolean ending;
+    // after a write error samples are still drained, but dropped, so the
+    // producers never block on a dead writer
+    private boolean failed;
+    private long latestUs;
+
+    // producer side stall counters
+    private volatile long stallCount;
+    private volatile long stallNanos;
+
+    /**
+     * Told on the writer thread once the muxer is released.
+     */
+    interface OnFinishedListener {
+        /**
+         * @param complete whether every sample was written and the muxer
+         *        stopped cleanly, i.e. the file is whole
+         */
+        void onFinished(boolean complete);
+    }
+
+    /**
+     * @param muxer owned by the writer from now on
+     * @param onFinished may be null
+     */
+    public MuxerWriter(Muxer muxer, OnFinishedListener onFinished) {
+        this.muxer = muxer;
+        this.onFinished = onFinished;
+    }
+
+    @Override
+    public void start(MediaFormat[] formats) {
+        tracks = new int[formats.length];
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArrayDeque<EncodedSample>[] pending = new ArrayDeque[formats.length];
+        this.pending = pending;
+        for (int i = 0; i < formats.length; i++) {
+            tracks[i] = muxer.addTrack(formats[i]);
+            // room for a full queue, so draining it doesn't grow them
+            pending[i] = new ArrayDeque<EncodedSample>(QUEUE_CAPACITY);
+        }
+        muxer.start();
+        thread = new Thread(this, "Muxer");
+        thread.start();
+    }
+
+    /**
+     * Queues the sample. Blocks while the queue is full, the time spent
+     * there is counted as a stall.
+     */
+    @Override
+    public void write(EncodedSample sample) {
+        enqueue(sample);
+    }
+
+    /**
+     * Writes out everything queued so far, then stops the muxer.
+     */
+    @Override
+    public void finish() {
+        if (thread == null) {
+            // never started
+            muxer.release();
+            return;
+        }
+        enqueue(END);
+    }
+
+    public long getStallCount() {
+        return stallCount;
+    }
+
+    public long getStallNanos() {
+        return stallNanos;
+    }
+
+    private void enqueue(EncodedSample sample) {
+        sample.queuedNanos = System.nanoTime();
+        if (!queue.offer(sample)) {
+            long stalled = System.nanoTime();
+            do {
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(STALL_PARK_NANOS);
+            } while (!queue.offer(sample));
+            synchronized (this) {
+                stallCount++;
+                stallNanos += System.nanoTime() - stalled;
+            }
+        }
+        if (parked)
+            LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        boolean complete = false;
+        try {
+            while (!ending || hasPending()) {
+                if (!drain() && !writePending())
+                    park();
+            }
+            if (!failed) {
+                muxer.stop();
+                complete = true;
+            }
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, "Muxer error", e);
+        }
+        finally {
+            discardRemaining();
+            try {
+                muxer.release();
+            }
+            catch (Exception e) {
+            }
+            Log.i(LOGTAG, stats.toString() + ", " + stallCount + " stalls in "
+                    + stallNanos / 1000000L + "ms");
+            if (onFinished != null)
+                onFinished.onFinished(complete);
+        }
+    }
+
+    private void park() {
+        parked = true;
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+        parked = false;
+    }
+
+    // gives every sample not written back to the pool, up to the end of the
+    // stream, so the producers never block on a writer that gave up
+    private void discardRemaining() {
+        failed = true;
+        while (true) {
+            drain();
+            for (ArrayDeque<EncodedSample> samples : pending) {
+                EncodedSample sample;
+                while ((sample = samples.poll()) != null)
+                    sample.release();
+            }
+            if (ending)
+                return;
+            park();
+        }
+    }
+
+    // moves everything queued so far into the per track lists
+    private boolean drain() {
+        boolean drained = false;
+        EncodedSample sample;
+        while ((sample = queue.poll()) != null) {
+            drained = true;
+            if (sample == END) {
+                ending = true;
+                continue;
+            }
+            latestUs = Math.max(latestUs, sample.info.presentationTimeUs);
+            pending[sample.track].add(sample);
+        }
+        return drained;
+    }
+
+    private boolean hasPending() {
+        for (ArrayDeque<EncodedSample> samples : pending) {
+            if (!samples.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    // writes pending samples in timestamp order for as long as the order is
+    // known, i.e. every track has something pending or has waited too long
+    private boolean writePending() {
+        boolean wrote = false;
+        while (true) {
+            ArrayDeque<EncodedSample> next = null;
+            boolean complete = true;
+            for (ArrayDeque<EncodedSample> samples : pending) {
+                EncodedSample head = samples.peek();
+                if (head == null)
+                    complete = false;
+                else if (next == null || head.info.presentationTimeUs < next.peek().info.presentationTimeUs)
+                    next = samples;
+            }
+            if (next == null)
+                return wrote;
+            EncodedSample sample = next.peek();
+            if (!complete && !ending && latestUs - sample.info.presentationTimeUs < MAX_INTERLEAVE_US)
+                return wrote;
+            next.poll();
+            try {
+                if (!failed) {
+                    muxer.writeSampleData(tracks[sample.track], sample.data, sample.info);
+                    stats.onSample(sample.info.size, System.nanoTime() - sample.queuedNanos);
+                }
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, "Muxer error", e);
+                failed = true;
+            }
+            finally {
+                sample.release();
+            }
+            wrote = true;
+        }
+    }
+}
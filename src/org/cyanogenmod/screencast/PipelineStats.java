@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import java.util.Locale;
+
+/**
+ * Throughput and latency counters for one stage of the recording pipeline.
+ * Recording a sample does not allocate, so this can stay enabled on the
+ * encoder hot paths. Not thread safe, each stage owns its own instance.
+ */
+class PipelineStats {
+    // latency histogram with power of two microsecond buckets
+    private static final int BUCKETS = 32;
+
+    private final String name;
+    private final long[] histogram = new long[BUCKETS];
+    private long firstSampleNanos;
+    private long lastSampleNanos;
+    private long samples;
+    private long bytes;
+    private long maxLatencyNanos;
+
+    public PipelineStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param size bytes handled for this sample
+     * @param latencyNanos time spent handling the sample
+     */
+    public void onSample(int size, long latencyNanos) {
+        long now = System.nanoTime();
+        if (samples == 0)
+            firstSampleNanos = now;
+        lastSampleNanos = now;
+        samples++;
+        bytes += size;
+        if (latencyNanos > maxLatencyNanos)
+            maxLatencyNanos = latencyNanos;
+        long us = latencyNanos / 1000L;
+        int bucket = us <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(us);
+        histogram[Math.min(bucket, BUCKETS - 1)]++;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    public double getSamplesPerSecond() {
+        long elapsed = lastSampleNanos - firstSampleNanos;
+        if (samples < 2 || elapsed <= 0)
+            return 0;
+        return (samples - 1) * 1000000000.0 / elapsed;
+    }
+
+    /**
+     * @return the upper bound in microseconds of the histogram bucket holding
+     *         the given percentile (0-100) of sample latencies.
+     */
+    public long getLatencyPercentileUs(double percentile) {
+        if (samples == 0)
+            return 0;
+        long rank = (long) Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank)
+                return i == 0 ? 0 : 1L << i;
+        }
+        return maxLatencyNanos / 1000L;
+    }
+
+    @Override
+    public String toString() {
+        long elapsed = lastSampleNanos - firstSampleNanos;
+        double kbps = elapsed <= 0 ? 0 : bytes * 8 * 1000000.0 / elapsed;
+        return String.format(Locale.US,
+                "%s: %d samples, %.1f/s, %.0f kbit/s, latency p50<=%dus p90<=%dus p99<=%dus max=%dus",
+                name, samples, getSamplesPerSecond(), kbps,
+                getLatencyPercentileUs(50), getLatencyPercentileUs(90),
+                getLatencyPercentileUs(99), maxLatencyNanos / 1000L);
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the output of the video encoder, and the audio encoder if any,
+ * and hands it to the sink. Both encoders call back on the same thread, the
+ * encoder thread, and the recorder is only used from there. Where the sink,
+ * the audio and the encoders come from is up to the subclass, so the
+ * recorder runs on the device as well as against stand-ins.
+ */
+abstract class Recorder implements Encoder.Callback {
+    private static final String LOGTAG = "Recorder";
+    // per-frame logging is far too chatty for the encoder hot path, only
+    // enable it with "setprop log.tag.Recorder VERBOSE"
+    private static final boolean VERBOSE = Log.isLoggable(LOGTAG, Log.VERBOSE);
+    // video frames this small carry (next to) no change of the screen
+    private static final int IDLE_FRAME_BYTES = 256;
+    // codec timestamps further off than this aren't on the System.nanoTime()
+    // clock after all
+    private static final long MAX_CLOCK_SKEW_US = 10000000L;
+    // track numbers of the samples handed to the sink
+    static final int TRACK_VIDEO = 0;
+    static final int TRACK_AUDIO = 1;
+
+    final Encoder venc;
+    private final boolean recordAudio;
+    volatile boolean doneCoding = false;
+    // used to rewrite the presentation timestamps into something 0 based
+    final long start = System.nanoTime();
+    final SamplePool pool;
+    SampleSink sink;
+    // the sink finishes the file from here on
+    boolean sinkStarted;
+    MediaFormat videoFormat;
+    MediaFormat audioFormat;
+    AudioRecorder audio;
+    boolean videoDone = false;
+    // only waited for once the audio encoder is running
+    boolean audioDone = true;
+    // video output that arrived while the audio track was being set up
+    final ArrayDeque<Integer> pendingIndices = new ArrayDeque<Integer>();
+    final ArrayDeque<MediaCodec.BufferInfo> pendingInfos = new ArrayDeque<MediaCodec.BufferInfo>();
+    // the pending infos are copies, as an encoder may hand out the same
+    // BufferInfo every time. Kept for reuse once written
+    private final ArrayDeque<MediaCodec.BufferInfo> spareInfos = new ArrayDeque<MediaCodec.BufferInfo>();
+    final PipelineStats videoStats = new PipelineStats("Recorder");
+    final PipelineStats audioStats = new PipelineStats("AudioMuxer");
+    final BitrateController bitrateController;
+    boolean variableFrameRate;
+    // last timestamp handed out per track, they must keep increasing
+    final long[] lastPtsUs = { -1, -1 };
+    long idleFramesSkipped;
+    // time spent paused, taken off the timestamps
+    long pausedNanos;
+    long pauseStartNanos;
+    boolean paused;
+    // after a pause the video picks up at a keyframe
+    boolean waitForKeyframe;
+
+    /**
+     * @param venc the video encoder, already started
+     * @param sampleMemoryLimit cap on the memory held by encoded samples not
+     *        yet released by the sink
+     * @param bitrateController adapts the video bitrate, null for a fixed one
+     * @param variableFrameRate keep capture times and skip idle frames
+     */
+    public Recorder(Encoder venc, long sampleMemoryLimit, boolean recordAudio,
+            BitrateController bitrateController, boolean variableFrameRate) {
+        this.venc = venc;
+        this.recordAudio = recordAudio;
+        this.bitrateController = bitrateController;
+        this.variableFrameRate = variableFrameRate;
+        pool = new SamplePool(sampleMemoryLimit);
+    }
+
+    /**
+     * Creates the consumer of the encoded samples, once the output formats
+     * are known.
+     */
+    protected abstract SampleSink createSink() throws Exception;
+
+    /**
+     * Creates the audio encoder, calling back on the encoder thread.
+     */
+    protected abstract Encoder createAudioEncoder(MediaFormat format) throws Exception;
+
+    /**
+     * Creates the source of the PCM fed to the audio encoder.
+     */
+    protected abstract AudioSource createAudioSource();
+
+    /**
+     * Called before a sample of {@code capacity} bytes is taken from the
+     * pool. A sink holding on to samples that only the encoder thread lets
+     * go of must make room here, or the pool waits forever.
+     */
+    protected void reserveSampleMemory(int capacity) {
+    }
+
+    /**
+     * Releases what the recording holds once it is over, also if it failed.
+     * Subclasses let go of the video encoder here.
+     */
+    protected void cleanup() {
+        doneCoding = true;
+        if (audio != null) {
+            audio.release();
+            audio = null;
+        }
+        if (sink != null) {
+            // keep whatever made it out
+            sink.finish();
+            sink = null;
+        }
+    }
+
+    // call once the last output has been handled
+    final void finish() {
+        cleanup();
+        Log.i(LOGTAG, "=======ENCODING COMPLETE=======");
+    }
+
+    final void fail(Exception e) {
+        Log.e(LOGTAG, "Encoder error", e);
+        finish();
+    }
+
+    /**
+     * @return whether the sink was started, after which it finishes the
+     *         output on its own.
+     */
+    final boolean isSinkStarted() {
+        return sinkStarted;
+    }
+
+    @Override
+    public void onInputBufferAvailable(Encoder codec, int index) {
+        if (audio != null && codec == audio.codec)
+            audio.inputs.offer(index);
+    }
+
+    @Override
+    final public void onOutputBufferAvailable(Encoder codec, int index, MediaCodec.BufferInfo info) {
+        try {
+            encode(codec, index, info);
+        }
+        catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    final public void onOutputFormatChanged(Encoder codec, MediaFormat format) {
+        try {
+            formatChanged(codec, format);
+        }
+        catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onError(Encoder codec, Exception e) {
+        fail(e);
+    }
+
+    void formatChanged(Encoder codec, MediaFormat format) throws Exception {
+        if (codec != venc) {
+            audioFormat = format;
+            startSink();
+            return;
+        }
+
+        // should happen before receiving buffers, and should only happen once
+        if (videoFormat != null) {
+            throw new RuntimeException("format changed twice");
+        }
+        Log.d(LOGTAG, "encoder output format changed: " + format);
+        videoFormat = format;
+        if (recordAudio) {
+            audio = new AudioRecorder();
+            if (audio.source.isInitialized()) {
+                // the sink starts once the audio format is known too
+                audioDone = false;
+                audio.start();
+                return;
+            }
+            audio.release();
+            audio = null;
+        }
+        startSink();
+    }
+
+    void startSink() throws Exception {
+        MediaFormat[] formats = audioFormat != null
+                ? new MediaFormat[] { videoFormat, audioFormat }
+                : new MediaFormat[] { videoFormat };
+        // now that we have the Magic Goodies, start the sink
+        sink = createSink();
+        sink.start(formats);
+        sinkStarted = true;
+        Log.i(LOGTAG, "Muxing");
+        while (!pendingIndices.isEmpty()) {
+            MediaCodec.BufferInfo info = pendingInfos.poll();
+            write(venc, TRACK_VIDEO, pendingIndices.poll(), info, videoStats);
+            spareInfos.add(info);
+        }
+    }
+
+    /**
+     * Leaves out the output from {@code nanos} on, until {@link #resume}.
+     */
+    void pause(long nanos) {
+        if (paused)
+            return;
+        paused = true;
+        pauseStartNanos = nanos;
+    }
+
+    /**
+     * Picks up again at the next video keyframe, with the time since
+     * {@link #pause} taken off the timestamps so the recording has no gap.
+     */
+    void resume(long nanos) {
+        if (!paused)
+            return;
+        paused = false;
+        pausedNanos += nanos - pauseStartNanos;
+        waitForKeyframe = true;
+    }
+
+    void encode(Encoder codec, int index, MediaCodec.BufferInfo info) throws Exception {
+        int track = codec == venc ? TRACK_VIDEO : TRACK_AUDIO;
+        if (info.size != 0 && isSkipped(track, info))
+            info.size = 0;
+        long base = start + pausedNanos;
+        long nowUs = (System.nanoTime() - base) / 1000L;
+        if (variableFrameRate && info.size != 0) {
+            // the surface and the audio input are stamped with
+            // System.nanoTime() when captured
+            long ptsUs = info.presentationTimeUs - base / 1000L;
+            if (Math.abs(ptsUs - nowUs) > MAX_CLOCK_SKEW_US) {
+                Log.w(LOGTAG, "Codec timestamps off by " + (ptsUs - nowUs) + "us, using arrival times");
+                variableFrameRate = false;
+            }
+            else {
+                nowUs = ptsUs;
+            }
+        }
+        if (info.size != 0) {
+            nowUs = Math.max(Math.max(nowUs, 0), lastPtsUs[track] + 1);
+            lastPtsUs[track] = nowUs;
+        }
+        info.presentationTimeUs = nowUs;
+        if (codec != venc) {
+            write(codec, TRACK_AUDIO, index, info, audioStats);
+        }
+        else if (sink == null) {
+            MediaCodec.BufferInfo held = spareInfos.poll();
+            if (held == null)
+                held = new MediaCodec.BufferInfo();
+            held.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            pendingIndices.add(index);
+            pendingInfos.add(held);
+        }
+        else {
+            write(codec, TRACK_VIDEO, index, info, videoStats);
+        }
+    }
+
+    void write(Encoder codec, int track, int index, MediaCodec.BufferInfo info, PipelineStats stats) throws Exception {
+        long dequeued = System.nanoTime();
+        if (VERBOSE) {
+            Log.v(LOGTAG, "Dequeued buffer " + info.presentationTimeUs);
+        }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+            if (VERBOSE) {
+                Log.v(LOGTAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            }
+            info.size = 0;
+        }
+
+        if (variableFrameRate && track == TRACK_VIDEO && isIdleFrame(codec, index, info)) {
+            idleFramesSkipped++;
+            info.size = 0;
+        }
+
+        if (info.size != 0) {
+            // copied out, so the codec gets its buffer back right away
+            reserveSampleMemory(SamplePool.capacityOf(info.size));
+            EncodedSample sample = pool.obtain(info.size);
+            sample.set(track, codec.getOutputBuffer(index), info);
+            sink.write(sample);
+            if (track == TRACK_VIDEO && bitrateController != null) {
+                int bitrate = bitrateController.onFrame(info.size, info.presentationTimeUs);
+                if (bitrate > 0) {
+                    if (VERBOSE) {
+                        Log.v(LOGTAG, "Video bitrate now " + bitrate);
+                    }
+                    venc.setVideoBitrate(bitrate);
+                }
+            }
+        }
+        codec.releaseOutputBuffer(index);
+        stats.onSample(info.size, System.nanoTime() - dequeued);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0)
+            return;
+        if (codec == venc) {
+            videoDone = true;
+            // tell the audio recorder to wrap up too
+            doneCoding = true;
+        }
+        else {
+            audioDone = true;
+        }
+        if (videoDone && audioDone)
+            finishRecording();
+    }
+
+    // leaves out the output while paused, and the video after it up to
+    // the keyframe asked for on resume
+    boolean isSkipped(int track, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
+            return false;
+        if (paused)
+            return true;
+        if (track == TRACK_VIDEO && waitForKeyframe) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0)
+                return true;
+            waitForKeyframe = false;
+        }
+        return false;
+    }
+
+    // a small frame no other frame refers to, i.e. every slice has a
+    // nal_ref_idc of 0, can be left out without breaking decoding
+    boolean isIdleFrame(Encoder codec, int index, MediaCodec.BufferInfo info) {
+        if (info.size == 0 || info.size > IDLE_FRAME_BYTES
+                || (info.flags & (MediaCodec.BUFFER_FLAG_KEY_FRAME
+                        | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) != 0)
+            return false;
+        ByteBuffer buffer = codec.getOutputBuffer(index);
+        int end = info.offset + info.size;
+        boolean slices = false;
+        for (int i = info.offset; i + 3 < end; i++) {
+            if (buffer.get(i) != 0 || buffer.get(i + 1) != 0 || buffer.get(i + 2) != 1)
+                continue;
+            int header = buffer.get(i + 3);
+            int type = header & 0x1f;
+            if (type == 1 || type == 5) {
+                if ((header & 0x60) != 0)
+                    return false;
+                slices = true;
+            }
+            i += 3;
+        }
+        return slices;
+    }
+
+    void finishRecording() {
+        Log.i(LOGTAG, "Done recording");
+        Log.i(LOGTAG, videoStats.toString());
+        if (variableFrameRate)
+            Log.i(LOGTAG, idleFramesSkipped + " idle frames skipped");
+        if (audio != null) {
+            Log.i(LOGTAG, audioStats.toString());
+            audio.release();
+            audio = null;
+        }
+        Log.i(LOGTAG, pool.toString());
+        // the sink wraps up once it has caught up
+        sink.finish();
+        sink = null;
+        finish();
+    }
+
+    // Start up an AudioSource thread to record the mic, and feed
+    // the data to an encoder. The encoded output is delivered to the
+    // Recorder on the encoder thread.
+    class AudioRecorder implements Runnable {
+        AudioSource source;
+        Encoder codec;
+        MediaFormat format;
+        // input buffers handed back by the codec. The blocking source read
+        // happens on this thread, so it never holds up the muxer.
+        final ArrayBlockingQueue<Integer> inputs = new ArrayBlockingQueue<Integer>(64);
+
+        public AudioRecorder() throws Exception {
+            format = new MediaFormat();
+            format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
+            format.setInteger(MediaFormat.KEY_BIT_RATE, 64 * 1024);
+            format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, AudioSource.CHANNEL_COUNT);
+            format.setInteger(MediaFormat.KEY_SAMPLE_RATE, AudioSource.SAMPLE_RATE);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectHE);
+            codec = createAudioEncoder(format);
+            codec.setCallback(Recorder.this);
+
+            Log.i(LOGTAG, "AudioRecorder init");
+            source = createAudioSource();
+        }
+
+        void start() {
+            codec.start();
+            new Thread(this, "AudioRecorder").start();
+        }
+
+        void release() {
+            try {
+                codec.stop();
+                codec.release();
+            }
+            catch (Exception e) {
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Log.i(LOGTAG, "AudioRecorder start");
+                source.start();
+                encode();
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, "AudioRecorder error", e);
+            }
+            Log.i(LOGTAG, "AudioRecorder done");
+            try {
+                source.stop();
+            }
+            catch (Exception e) {
+            }
+            try {
+                source.release();
+            }
+            catch (Exception e) {
+            }
+        }
+
+        void encode() throws Exception {
+            PipelineStats stats = new PipelineStats("AudioRecorder");
+            while (!doneCoding) {
+                // wait for the codec rather than spinning on it
+                Integer bufIndex = inputs.poll(100, TimeUnit.MILLISECONDS);
+                if (bufIndex == null)
+                    continue;
+                long dequeued = System.nanoTime();
+                ByteBuffer b = codec.getInputBuffer(bufIndex);
+                int size = source.read(b, b.capacity());
+                size = size < 0 ? 0 : size;
+                codec.queueInputBuffer(bufIndex, 0, size, System.nanoTime() / 1000L, 0);
+                stats.onSample(size, System.nanoTime() - dequeued);
+            }
+            Log.i(LOGTAG, stats.toString());
+            Integer bufIndex = inputs.poll(1, TimeUnit.SECONDS);
+            if (bufIndex == null) {
+                Log.w(LOGTAG, "No input buffer for the audio end of stream");
+                return;
+            }
+            codec.queueInputBuffer(bufIndex, 0, 0, System.nanoTime() / 1000L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+    }
+}
@@ -18,39 +18,257 @@ package org.cyanogenmod.screencast;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
-import android.media.MediaRecorder;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.Handler;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 class RecordingDevice extends EncoderDevice {
     private static final String LOGTAG = "RecordingDevice";
-    private static final File RECORDINGS_DIR = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES), "Screencasts");
+    // cap on encoded samples waiting for the muxer
+    private static final long MAX_PENDING_BYTES = 16 * 1024 * 1024;
+    // a static screen puts out no frames, so nor the keyframe a segment
+    // waits for. Have the encoder repeat the last frame after this long
+    private static final long SEGMENT_REPEAT_FRAME_US = 1000000L;
+    static final File RECORDINGS_DIR = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES), "Screencasts");
     private boolean mRecordAudio;
+    // segmented output limits, none if both are 0
+    private long mSegmentDurationUs;
+    private long mSegmentBytes;
+    // fragmented mp4 flush interval, plain mp4 if 0
+    private long mFragmentFlushUs;
+    // adaptive bitrate target and floor, fixed bitrate if 0
+    private int mBitrateBudget;
+    private int mMinBitrate;
+    private BitrateController mBitrateController;
+    private boolean mVariableFrameRate;
+    // run by the muxer thread once the file is closed, cancelled if no file
+    // or an incomplete one was written
+    private final FutureTask<File> mFinished = new FutureTask<File>(new Callable<File>() {
+        @Override
+        public File call() {
+            scanFile(context, path);
+            return path;
+        }
+    }) {
+        @Override
+        protected void done() {
+            reportFinished();
+        }
+    };
+    // both guarded by mFinished
+    private OnFinishedListener mOnFinishedListener;
+    private boolean mFinishedReported;
+    // set on the encoder thread
+    private boolean mFileSinkCreated;
+    private volatile DeviceRecorder mActiveRecorder;
     File path;
     public boolean shouldRecordAudio;
 
+    /**
+     * Told when the recording file is complete, which may be well after the
+     * recording was stopped.
+     */
+    interface OnFinishedListener {
+        /**
+         * Called on a background thread.
+         *
+         * @param file the complete recording, null if no file was written or
+     *        writing it failed
+         */
+        void onRecordingFinished(File file);
+    }
+
     public RecordingDevice(Context context, int width, int height, boolean recordAudio) {
         super(context, width, height);
         mRecordAudio = recordAudio;
+        path = newRecordingFile("Screencast");
+    }
+
+    /**
+     * Names the recording file after the current time again, for a device
+     * prepared a while before the recording starts. Must be called before
+     * {@link #setSegmentLimits}.
+     */
+    public void renewRecordingFile() {
+        path = newRecordingFile("Screencast");
+    }
+
+    /**
+     * @return whether the mic is recorded too.
+     */
+    public boolean isRecordingAudio() {
+        return mRecordAudio;
+    }
+
+    /**
+     * @return a new file in the recordings directory, named after the prefix
+     *         and the current time.
+     */
+    static File newRecordingFile(String prefix) {
         // Prepare all the output metadata
         String videoDate = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss").format(new Date(System.currentTimeMillis()));
         // the directory which holds all recording files
-        path = new File(RECORDINGS_DIR, "Screencast_" + videoDate + ".mp4");
+        File file = new File(RECORDINGS_DIR, prefix + "_" + videoDate + ".mp4");
+        // the previous recording may still be finishing under the same name
+        for (int i = 2; file.exists(); i++)
+            file = new File(RECORDINGS_DIR, prefix + "_" + videoDate + "-" + i + ".mp4");
+        return file;
+    }
+
+    static void checkRecordingDir(File file) {
+        File recordingDir = file.getParentFile();
+        recordingDir.mkdirs();
+        if (!(recordingDir.exists() && recordingDir.canWrite())) {
+            throw new SecurityException("Cannot write to " + recordingDir);
+        }
+    }
+
+    static void scanFile(Context context, File file) {
+        MediaScannerConnection.scanFile(context,
+        new String[]{file.getAbsolutePath()}, null,
+        new MediaScannerConnection.OnScanCompletedListener() {
+            public void onScanCompleted(String path, Uri uri) {
+                Log.i(LOGTAG, "MediaScanner scanned recording " + path);
+            }
+        });
+    }
+
+    /**
+     * Splits the recording into standalone segments listed in a playlist,
+     * which then becomes the recording file. Must be called before the
+     * recording starts.
+     *
+     * @param seconds segment length limit, 0 for none
+     * @param megabytes segment size limit, 0 for none
+     */
+    public void setSegmentLimits(int seconds, int megabytes) {
+        mSegmentDurationUs = seconds * 1000000L;
+        mSegmentBytes = megabytes * 1048576L;
+        if (isSegmented()) {
+            String name = path.getName();
+            path = new File(path.getParentFile(), name.substring(0, name.lastIndexOf('.')) + ".m3u");
+        }
+    }
+
+    /**
+     * Writes the recording as fragmented mp4, synced to storage every
+     * {@code millis}, so it survives the process being killed. Ignored for
+     * segmented recordings. Must be called before the recording starts.
+     *
+     * @param millis flush interval, 0 for a plain mp4
+     */
+    public void setFragmentInterval(int millis) {
+        mFragmentFlushUs = millis * 1000L;
+    }
+
+    /**
+     * @return whether the recording file can be recovered with
+     *         {@link FragmentedMp4Muxer#recover} if it isn't finished.
+     */
+    public boolean isRecoverable() {
+        return hasRecordingFile() && !isSegmented() && mFragmentFlushUs > 0;
+    }
+
+    /**
+     * @return whether the recording ends up in {@link #path}.
+     */
+    public boolean hasRecordingFile() {
+        return true;
+    }
+
+    /**
+     * Adapts the video bitrate at runtime to average out at the budget, e.g.
+     * the storage or network rate available. Must be called before the
+     * recording starts.
+     *
+     * @param bitsPerSecond target average, 0 to encode at the maximum
+     *        bitrate throughout
+     * @param minBitsPerSecond quality floor
+     */
+    public void setBitrateBudget(int bitsPerSecond, int minBitsPerSecond) {
+        mBitrateBudget = bitsPerSecond;
+        mMinBitrate = minBitsPerSecond;
+    }
+
+    /**
+     * Records at a variable frame rate: frames keep the time the screen was
+     * captured rather than the time they left the encoder, and idle frames
+     * that nothing depends on are left out. Must be called before the
+     * recording starts.
+     */
+    public void setVariableFrameRate(boolean variable) {
+        mVariableFrameRate = variable;
+    }
+
+    @Override
+    protected int chooseBitrate(int maxBitrate) {
+        if (mBitrateBudget <= 0) {
+            // the budget may have been cleared since the last encoder
+            mBitrateController = null;
+            return maxBitrate;
+        }
+        mBitrateController = new BitrateController(mBitrateBudget, mMinBitrate, maxBitrate);
+        return mBitrateController.getBitrate();
+    }
+
+    @Override
+    protected void configureVideoFormat(MediaFormat video) {
+        if (isSegmented())
+            video.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, SEGMENT_REPEAT_FRAME_US);
+    }
+
+    private boolean isSegmented() {
+        return mSegmentDurationUs > 0 || mSegmentBytes > 0;
+    }
+
+    /**
+     * @return completes with the recording file once it is written out,
+     *         closed and scanned, on the thread that wrote it. Cancelled if
+     *         no file was written, or writing it failed.
+     */
+    public Future<File> getFinishedFile() {
+        return mFinished;
+    }
+
+    /**
+     * Sets the listener told when {@link #getFinishedFile} completes. It is
+     * told right away if that already happened.
+     */
+    public void setOnFinishedListener(OnFinishedListener listener) {
+        synchronized (mFinished) {
+            mOnFinishedListener = listener;
+        }
+        if (mFinished.isDone())
+            reportFinished();
+    }
+
+    private void reportFinished() {
+        OnFinishedListener listener;
+        synchronized (mFinished) {
+            if (mFinishedReported || mOnFinishedListener == null)
+                return;
+            mFinishedReported = true;
+            listener = mOnFinishedListener;
+        }
+        File file = null;
+        try {
+            file = mFinished.get();
+        }
+        catch (Exception e) {
+            // cancelled, or the scan failed
+        }
+        listener.onRecordingFinished(file);
     }
 
     /**
@@ -60,243 +278,161 @@ class RecordingDevice extends EncoderDevice {
         return path.getAbsolutePath();
     }
 
+    /**
+     * @return the mime type of the screen cast file.
+     */
+    public String getRecordingMimeType() {
+        return isSegmented() ? "audio/x-mpegurl" : "video/mp4";
+    }
+
     @Override
-    protected EncoderRunnable onSurfaceCreated(MediaCodec venc) {
-        return new Recorder(venc);
+    protected Encoder.Callback onEncoderCreated(Encoder venc, Handler handler) {
+        return mActiveRecorder = new DeviceRecorder(venc, handler);
     }
 
-    // thread to mux the encoded audio into the final mp4 file
-    class AudioMuxer implements Runnable {
-        AudioRecorder audio;
-        MediaMuxer muxer;
-        int track;
-        // the video encoder waits for the audio muxer to get ready with
-        // this semaphore
-        Semaphore muxWaiter;
-        AudioMuxer(AudioRecorder audio, MediaMuxer muxer, Semaphore muxWaiter) {
-            this.audio = audio;
-            this.muxer = muxer;
-            this.muxWaiter = muxWaiter;
+    /**
+     * Pauses the recording. The codecs and the sink stay set up, what they
+     * put out until {@link #resume} is left out, and the time in between is
+     * taken off the timestamps so the recording has no gap.
+     */
+    @Override
+    public void pause() {
+        final DeviceRecorder recorder = mActiveRecorder;
+        final long now = System.nanoTime();
+        if (recorder != null) {
+            recorder.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.pause(now);
+                }
+            });
         }
+        super.pause();
+    }
 
-        @Override
-        public void run() {
-            try {
-                if (audio.record.getState() != AudioRecord.STATE_INITIALIZED) {
-                    muxer.start();
-                    return;
+    @Override
+    public void resume() {
+        final DeviceRecorder recorder = mActiveRecorder;
+        final long now = System.nanoTime();
+        if (recorder != null) {
+            recorder.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.resume(now);
                 }
-                encode();
-            }
-            catch (Exception e) {
-                Log.e(LOGTAG, "Audio Muxer error", e);
-            }
-            finally {
-                Log.i(LOGTAG, "AudioMuxer done");
-                muxWaiter.release();
-            }
+            });
         }
+        super.resume();
+    }
 
-        void encode() throws Exception {
-            ByteBuffer[] outs = audio.codec.getOutputBuffers();
-            boolean doneCoding = false;
-            // used to rewrite the presentation timestamps into something 0 based
-            long start = System.nanoTime();
-            while (!doneCoding) {
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                int bufIndex = audio.codec.dequeueOutputBuffer(info, -1);
-                if (bufIndex >= 0) {
-                    ByteBuffer b = outs[bufIndex];
-
-                    info.presentationTimeUs = (System.nanoTime() - start) / 1000L;
-                    muxer.writeSampleData(track, b, info);
-
-                    audio.codec.releaseOutputBuffer(bufIndex, false);
-                    doneCoding = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
-                }
-                else if (bufIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    outs = audio.codec.getOutputBuffers();
+    /**
+     * Creates the consumer of the encoded samples. Called on the encoder
+     * thread once the output formats are known. By default the samples are
+     * muxed into {@link #path}.
+     */
+    protected SampleSink createSink() throws IOException {
+        return createFileSink();
+    }
+
+    /**
+     * @return a sink muxing the samples into {@link #path}.
+     */
+    protected final SampleSink createFileSink() throws IOException {
+        checkRecordingDir(path);
+        mFileSinkCreated = true;
+        return new MuxerWriter(createMuxer(), new MuxerWriter.OnFinishedListener() {
+            @Override
+            public void onFinished(boolean complete) {
+                // a file missing its tail isn't one to scan or share
+                if (complete)
+                    mFinished.run();
+                else
+                    mFinished.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * @return the cap on the memory held by encoded samples not yet
+     *         released by the sink.
+     */
+    protected long getSampleMemoryLimit() {
+        return MAX_PENDING_BYTES;
+    }
+
+    /**
+     * Called on the encoder thread before a sample of {@code capacity} bytes
+     * is taken from the pool. A sink holding on to samples that only this
+     * thread lets go of must make room here, or the pool waits forever.
+     */
+    protected void reserveSampleMemory(int capacity) {
+    }
+
+    /**
+     * Creates the container writer for {@link #path}.
+     */
+    protected Muxer createMuxer() throws IOException {
+        if (isSegmented()) {
+            return new SegmentedMuxer(path, mSegmentDurationUs, mSegmentBytes, new Runnable() {
+                @Override
+                public void run() {
+                    requestSyncFrame();
                 }
-                else if (bufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    MediaFormat newFormat = audio.codec.getOutputFormat();
-                    track = muxer.addTrack(newFormat);
-                    muxer.start();
-                    muxWaiter.release();
+            }, new SegmentedMuxer.OnSegmentListener() {
+                @Override
+                public void onSegmentComplete(File segment) {
+                    scanFile(context, segment);
                 }
-            }
+            });
         }
+        if (mFragmentFlushUs > 0)
+            return new FragmentedMp4Muxer(path.getAbsolutePath(), mFragmentFlushUs);
+        return new Mp4Muxer(path.getAbsolutePath());
     }
 
-    // Start up an AudioRecord thread to record the mic, and feed
-    // the data to an encoder.
-    class AudioRecorder implements Runnable {
-        Recorder recorder;
-        AudioRecord record;
-        MediaCodec codec;
-        MediaFormat format;
-        public AudioRecorder(Recorder recorder) {
-            try {
-                codec = MediaCodec.createEncoderByType("audio/mp4a-latm");
-            } catch (IOException e) {
-                Log.wtf(LOGTAG, "Can't create encoder!", e);
-            }
-            format = new MediaFormat();
-            format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
-            format.setInteger(MediaFormat.KEY_BIT_RATE, 64 * 1024);
-            format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-            format.setInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
-            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectHE);
-            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            codec.start();
-
-            this.recorder = recorder;
-
-            int bufferSize = 1024 * 30;
-            int minBufferSize = AudioRecord.getMinBufferSize(44100, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-            if (bufferSize < minBufferSize)
-                bufferSize = ((minBufferSize / 1024) + 1) * 1024 * 2;
-            Log.i(LOGTAG, "AudioRecorder init");
-            record = new AudioRecord(MediaRecorder.AudioSource.MIC, 44100, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+    /**
+     * Creates the source of the PCM fed to the audio encoder.
+     */
+    protected AudioSource createAudioSource() {
+        return new MicAudioSource();
+    }
+
+    // Records the output of the encoders of this device, cleans up the
+    // device once the recording is over
+    class DeviceRecorder extends Recorder {
+        final Handler handler;
+
+        public DeviceRecorder(Encoder venc, Handler handler) {
+            super(venc, getSampleMemoryLimit(), mRecordAudio, mBitrateController, mVariableFrameRate);
+            this.handler = handler;
         }
 
         @Override
-        public void run() {
-            try {
-                Log.i(LOGTAG, "AudioRecorder start");
-                record.startRecording();
-                encode();
-            }
-            catch (Exception e) {
-                Log.e(LOGTAG, "AudioRecorder error", e);
-            }
-            Log.i(LOGTAG, "AudioRecorder done");
-            try {
-                record.stop();
-            }
-            catch (Exception e) {
-            }
-            try {
-                record.release();
-            }
-            catch (Exception e) {
-            }
+        protected SampleSink createSink() throws IOException {
+            return RecordingDevice.this.createSink();
         }
 
-        void encode() throws Exception {
-            ByteBuffer[] inputs = codec.getInputBuffers();
-            while (!recorder.doneCoding) {
-                int bufIndex = codec.dequeueInputBuffer(1024);
-                if (bufIndex < 0)
-                    continue;
-                ByteBuffer b = inputs[bufIndex];
-                b.clear();
-                int size = record.read(b, b.capacity());
-                size = size < 0 ? 0 : size;
-                b.clear();
-                codec.queueInputBuffer(bufIndex, 0, size, System.nanoTime() / 1000L, 0);
-            }
-            int bufIndex = codec.dequeueInputBuffer(-1);
-            codec.queueInputBuffer(bufIndex, 0, 0, System.nanoTime() / 1000L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        @Override
+        protected Encoder createAudioEncoder(MediaFormat format) throws IOException {
+            return MediaCodecEncoder.create(format, handler);
         }
-    }
 
-    class Recorder extends EncoderRunnable {
-        public Recorder(MediaCodec venc) {
-            super(venc);
+        @Override
+        protected AudioSource createAudioSource() {
+            return RecordingDevice.this.createAudioSource();
         }
-        boolean doneCoding = false;
 
         @Override
-        protected void cleanup() {
-            super.cleanup();
-            doneCoding = true;
+        protected void reserveSampleMemory(int capacity) {
+            RecordingDevice.this.reserveSampleMemory(capacity);
         }
 
         @Override
-        public void encode() throws Exception {
-            File recordingDir = path.getParentFile();
-            recordingDir.mkdirs();
-            if (!(recordingDir.exists() && recordingDir.canWrite())) {
-                throw new SecurityException("Cannot write to " + recordingDir);
-            }
-            MediaMuxer muxer = new MediaMuxer(path.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            boolean muxerStarted = false;
-            int trackIndex = -1;
-            Thread audioThread = null;
-            AudioMuxer audioMuxer;
-            AudioRecorder audio;
-
-            ByteBuffer[] encouts = venc.getOutputBuffers();
-            long start = System.nanoTime();
-            while (!doneCoding) {
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                int bufIndex = venc.dequeueOutputBuffer(info, -1);
-                if (bufIndex >= 0) {
-                    Log.i(LOGTAG, "Dequeued buffer " + info.presentationTimeUs);
-
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // The codec config data was pulled out and fed to the muxer when we got
-                        // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                        Log.d(LOGTAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                        info.size = 0;
-                    }
-
-                    if (!muxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    ByteBuffer b = encouts[bufIndex];
-
-                    info.presentationTimeUs = (System.nanoTime() - start) / 1000L;
-                    muxer.writeSampleData(trackIndex, b, info);
-
-                    b.clear();
-                    venc.releaseOutputBuffer(bufIndex, false);
-
-                    doneCoding = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
-                }
-                else if (bufIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    encouts = venc.getOutputBuffers();
-                }
-                else if (bufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // should happen before receiving buffers, and should only happen once
-                    if (muxerStarted) {
-                        throw new RuntimeException("format changed twice");
-                    }
-                    MediaFormat newFormat = venc.getOutputFormat();
-                    Log.d(LOGTAG, "encoder output format changed: " + newFormat);
-
-                    // now that we have the Magic Goodies, start the muxer
-                    trackIndex = muxer.addTrack(newFormat);
-                    if (mRecordAudio) {
-                        audio = new AudioRecorder(this);
-                        Semaphore semaphore = new Semaphore(0);
-                        audioMuxer = new AudioMuxer(audio, muxer, semaphore);
-                        muxerStarted = true;
-                        new Thread(audio, "AudioRecorder").start();
-                        audioThread = new Thread(audioMuxer, "AudioMuxer");
-                        audioThread.start();
-
-                        semaphore.acquire();
-                    } else {
-                        muxer.start();
-                        muxerStarted = true;
-                    }
-                    Log.i(LOGTAG, "Muxing");
-                }
-            }
-            doneCoding = true;
-            Log.i(LOGTAG, "Done recording");
-            if (audioThread != null)
-                audioThread.join();
-            muxer.stop();
-            MediaScannerConnection.scanFile(context,
-            new String[]{path.getAbsolutePath()}, null,
-            new MediaScannerConnection.OnScanCompletedListener() {
-                public void onScanCompleted(String path, Uri uri) {
-                    Log.i(LOGTAG, "MediaScanner scanned recording " + path);
-                }
-            });
+        protected void cleanup() {
+            super.cleanup();
+            if (!isSinkStarted() || !mFileSinkCreated)
+                mFinished.cancel(false);
+            releaseEncoder(venc, handler);
         }
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * {@link SampleSink} keeping the last few seconds of encoded samples in
+ * memory. Old samples are dropped a whole GOP at a time, so the buffer
+ * always starts on a video keyframe. Nothing is written to storage until
+ * {@link #save} muxes the buffered window into a file.
+ */
+class ReplayBuffer implements SampleSink {
+    private static final String LOGTAG = "ReplayBuffer";
+
+    interface OnSavedListener {
+        /**
+         * Called on the saving thread once the clip is complete.
+         */
+        void onClipSaved(File file, long durationUs);
+    }
+
+    private final long windowUs;
+    private final long maxBytes;
+    private final ArrayDeque<EncodedSample> samples = new ArrayDeque<EncodedSample>();
+    // the video keyframes among the samples, oldest first
+    private final ArrayDeque<EncodedSample> keyframes = new ArrayDeque<EncodedSample>();
+    private MediaFormat[] formats;
+    // capacity of the buffered samples, as counted by the pool
+    private long bytes;
+    private long newestUs;
+    // the buffer was emptied to make room, so nothing is kept up to the
+    // next video keyframe
+    private boolean waitForKeyframe;
+
+    /**
+     * @param windowUs how much of the recent past to keep
+     * @param maxBytes cap on the buffered samples, wins over the window
+     */
+    public ReplayBuffer(long windowUs, long maxBytes) {
+        this.windowUs = windowUs;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public synchronized void start(MediaFormat[] formats) {
+        this.formats = formats;
+    }
+
+    @Override
+    public synchronized void write(EncodedSample sample) {
+        boolean keyframe = sample.track == Recorder.TRACK_VIDEO
+                && (sample.info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (waitForKeyframe && !keyframe) {
+            sample.release();
+            return;
+        }
+        waitForKeyframe = false;
+        samples.add(sample);
+        bytes += sample.data.capacity();
+        newestUs = Math.max(newestUs, sample.info.presentationTimeUs);
+        if (keyframe)
+            keyframes.add(sample);
+        trim(0);
+    }
+
+    /**
+     * Makes room for a sample of {@code capacity} bytes before it is taken
+     * from the pool. The pool is capped at the buffer cap plus some headroom
+     * and only the encoder thread releases buffered samples, so without this
+     * the pool would wait on the buffer forever.
+     */
+    public synchronized void reserve(int capacity) {
+        trim(capacity);
+        if (bytes + capacity <= maxBytes)
+            return;
+        // a single GOP over the cap, start over at the next keyframe
+        Log.w(LOGTAG, "GOP exceeds " + maxBytes / 1024 + "k, dropping " + samples.size() + " samples");
+        clear();
+        waitForKeyframe = true;
+    }
+
+    // drops the oldest GOP for as long as what remains still covers the
+    // window and fits in the cap along with another {@code reserved} bytes
+    private void trim(int reserved) {
+        while (keyframes.size() > 1) {
+            EncodedSample oldest = keyframes.poll();
+            EncodedSample next = keyframes.peek();
+            if (bytes + reserved <= maxBytes && next.info.presentationTimeUs > newestUs - windowUs) {
+                keyframes.addFirst(oldest);
+                return;
+            }
+            while (samples.peek() != next) {
+                EncodedSample sample = samples.poll();
+                bytes -= sample.data.capacity();
+                sample.release();
+            }
+        }
+    }
+
+    private void clear() {
+        EncodedSample sample;
+        while ((sample = samples.poll()) != null)
+            sample.release();
+        keyframes.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public synchronized void finish() {
+        clear();
+    }
+
+    /**
+     * Muxes the buffered window into {@code file} on a background thread.
+     * The time it takes is proportional to the length of the clip. Each
+     * sample of the clip is let go of as soon as it is written.
+     *
+     * @return false if nothing has been buffered yet
+     */
+    public boolean save(final File file, final OnSavedListener listener) {
+        final ArrayList<EncodedSample> clip = new ArrayList<EncodedSample>();
+        final MediaFormat[] formats;
+        synchronized (this) {
+            formats = this.formats;
+            // start at the newest keyframe that still covers the window
+            EncodedSample first = null;
+            for (EncodedSample keyframe : keyframes) {
+                if (first == null || keyframe.info.presentationTimeUs <= newestUs - windowUs)
+                    first = keyframe;
+            }
+            if (first == null)
+                return false;
+            boolean found = false;
+            for (Iterator<EncodedSample> i = samples.iterator(); i.hasNext();) {
+                EncodedSample sample = i.next();
+                found |= sample == first;
+                if (found)
+                    clip.add(sample.retain());
+            }
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long durationUs = write(file, formats, clip);
+                if (durationUs >= 0 && listener != null)
+                    listener.onClipSaved(file, durationUs);
+            }
+        }, "ReplaySaver").start();
+        return true;
+    }
+
+    // returns the duration of the clip, or -1 on failure
+    private static long write(File file, MediaFormat[] formats, ArrayList<EncodedSample> clip) {
+        Muxer muxer = null;
+        try {
+            RecordingDevice.checkRecordingDir(file);
+            muxer = new Mp4Muxer(file.getAbsolutePath());
+            int[] tracks = new int[formats.length];
+            for (int i = 0; i < formats.length; i++)
+                tracks[i] = muxer.addTrack(formats[i]);
+            muxer.start();
+
+            // rebase the clip on its first keyframe
+            long baseUs = clip.get(0).info.presentationTimeUs;
+            long lastUs = baseUs;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (int i = 0; i < clip.size(); i++) {
+                EncodedSample sample = clip.get(i);
+                long ptsUs = sample.info.presentationTimeUs;
+                if (ptsUs >= baseUs) {
+                    info.set(0, sample.info.size, ptsUs - baseUs, sample.info.flags);
+                    muxer.writeSampleData(tracks[sample.track], sample.data, info);
+                    lastUs = Math.max(lastUs, ptsUs);
+                }
+                // back to the pool as soon as possible, the buffer refills
+                // from it meanwhile
+                clip.set(i, null);
+                sample.release();
+            }
+            muxer.stop();
+            Log.i(LOGTAG, "Saved " + clip.size() + " samples to " + file);
+            return lastUs - baseUs;
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, "Error saving clip", e);
+            return -1;
+        }
+        finally {
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                }
+                catch (Exception e) {
+                }
+            }
+            for (EncodedSample sample : clip) {
+                if (sample != null)
+                    sample.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * Instant replay: keeps encoding into a {@link ReplayBuffer} and only
+ * writes a file when asked to save the last few seconds.
+ */
+class ReplayDevice extends RecordingDevice {
+    private final ReplayBuffer buffer;
+    private final long maxBytes;
+
+    public ReplayDevice(Context context, int width, int height, boolean recordAudio,
+            int seconds, long maxBytes) {
+        super(context, width, height, recordAudio);
+        this.maxBytes = maxBytes;
+        buffer = new ReplayBuffer(seconds * 1000000L, maxBytes);
+    }
+
+    @Override
+    protected SampleSink createSink() {
+        return buffer;
+    }
+
+    @Override
+    public boolean hasRecordingFile() {
+        return false;
+    }
+
+    @Override
+    protected long getSampleMemoryLimit() {
+        // the buffered window plus the usual headroom for samples in flight
+        return maxBytes + super.getSampleMemoryLimit();
+    }
+
+    @Override
+    protected void reserveSampleMemory(int capacity) {
+        // keeps the buffer within its share of the pool, what is left over
+        // is only held by a clip being saved. The saver lets go of the clip
+        // a sample at a time as it muxes it, so the encoder only waits here
+        // if the buffer refills faster than the clip is written out
+        buffer.reserve(capacity);
+    }
+
+    /**
+     * Saves the buffered window to a new file in the background.
+     *
+     * @return false if there is nothing to save yet
+     */
+    public boolean saveClip(final ReplayBuffer.OnSavedListener listener) {
+        return buffer.save(newRecordingFile("Replay"), new ReplayBuffer.OnSavedListener() {
+            @Override
+            public void onClipSaved(File file, long durationUs) {
+                scanFile(context, file);
+                listener.onClipSaved(file, durationUs);
+            }
+        });
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import android.graphics.Point;
+import android.media.MediaCodecInfo;
+
+/**
+ * Picks the encoding size and profile from what the encoder reports it can
+ * do, rather than from a fixed table of standard resolutions: the largest
+ * size within the limits that keeps the aspect ratio of the display within
+ * a small tolerance, respects the encoder's alignment, and can be encoded
+ * at the frame rate in real time.
+ */
+class ResolutionSelector {
+    // largest relative aspect ratio error accepted
+    private static final double ASPECT_TOLERANCE = 0.01;
+    // nothing smaller is worth recording
+    private static final int MIN_SHORT_SIDE = 240;
+
+    private final Capabilities capabilities;
+    private final int frameRate;
+
+    /**
+     * What the selection needs to know about the AVC encoder, as reported by
+     * {@link MediaCodecInfo.CodecCapabilities}.
+     */
+    interface Capabilities {
+        int getWidthAlignment();
+
+        int getHeightAlignment();
+
+        boolean areSizeAndRateSupported(int width, int height, double frameRate);
+
+        /**
+         * @return the highest frame rate the encoder was measured to keep up
+         *         with at the size, or NaN if it wasn't measured
+         */
+        double getAchievableFrameRate(int width, int height);
+
+        int getMinBitrate();
+
+        int getMaxBitrate();
+
+        /**
+         * @return the highest level supported for the profile, 0 if the
+         *         profile isn't supported
+         */
+        int getMaxLevel(int profile);
+    }
+
+    public ResolutionSelector(Capabilities capabilities, int frameRate) {
+        this.capabilities = capabilities;
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * @param width display width, the size keeps its orientation
+     * @param height display height
+     * @param maxLong limit on the longer side
+     * @param maxShort limit on the shorter side
+     * @return the size to encode at, or null if nothing fits
+     */
+    public Point select(int width, int height, int maxLong, int maxShort) {
+        boolean landscape = width > height;
+        int longSide = Math.max(width, height);
+        int shortSide = Math.min(width, height);
+        double ratio = (double) longSide / shortSide;
+        int longAlign = Math.max(1, landscape ? capabilities.getWidthAlignment() : capabilities.getHeightAlignment());
+        int shortAlign = Math.max(1, landscape ? capabilities.getHeightAlignment() : capabilities.getWidthAlignment());
+
+        int start = Math.min(shortSide, maxShort);
+        for (int s = start - start % shortAlign; s >= MIN_SHORT_SIDE; s -= shortAlign) {
+            // the aligned long sides closest to the ratio first, the
+            // closest may be too large for the limits or the encoder
+            double target = s * ratio;
+            int below = (int) Math.floor(target / longAlign) * longAlign;
+            int above = below + longAlign;
+            while (true) {
+                boolean belowFits = below > 0 && target - below <= target * ASPECT_TOLERANCE;
+                boolean aboveFits = above - target <= target * ASPECT_TOLERANCE;
+                if (!belowFits && !aboveFits)
+                    break;
+                int l;
+                if (belowFits && (!aboveFits || target - below <= above - target)) {
+                    l = below;
+                    below -= longAlign;
+                }
+                else {
+                    l = above;
+                    above += longAlign;
+                }
+                if (l > longSide || l > maxLong)
+                    continue;
+                int w = landscape ? l : s;
+                int h = landscape ? s : l;
+                if (canSustain(w, h))
+                    return new Point(w, h);
+            }
+        }
+        return null;
+    }
+
+    // whether the encoder takes the size and keeps up with the frame rate
+    private boolean canSustain(int width, int height) {
+        if (!capabilities.areSizeAndRateSupported(width, height, frameRate))
+            return false;
+        // measured by the vendor, missing on many devices
+        double achievable = capabilities.getAchievableFrameRate(width, height);
+        return Double.isNaN(achievable) || achievable >= frameRate;
+    }
+
+    /**
+     * @return the bitrate clamped to the range the encoder supports.
+     */
+    public int clampBitrate(int bitrate) {
+        return Math.max(capabilities.getMinBitrate(), Math.min(bitrate, capabilities.getMaxBitrate()));
+    }
+
+    public int getMinBitrate() {
+        return capabilities.getMinBitrate();
+    }
+
+    /**
+     * Picks the best AVC profile the encoder supports, at its highest level.
+     * High profile gives the same quality at a lower bitrate.
+     *
+     * @return the profile and level, or null to leave the encoder's default
+     */
+    public MediaCodecInfo.CodecProfileLevel selectProfile() {
+        int[] preferred = {
+            MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+        };
+        for (int profile : preferred) {
+            int level = capabilities.getMaxLevel(profile);
+            if (level != 0) {
+                MediaCodecInfo.CodecProfileLevel best = new MediaCodecInfo.CodecProfileLevel();
+                best.profile = profile;
+                best.level = level;
+                return best;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Pool of {@link EncodedSample}s backed by direct buffers, bucketed into
+ * power of two size classes. Samples are reference counted and come back to
+ * the pool when the last reference is released. The total size of the
+ * samples handed out is capped: once it is reached, {@link #obtain} blocks
+ * until enough samples are released instead of allocating more.
+ */
+class SamplePool {
+    private static final int MIN_CLASS_SHIFT = 10; // 1k
+    private static final int MAX_CLASS_SHIFT = 23; // 8M
+
+    private final long maxBytes;
+    private final ArrayDeque<EncodedSample>[] free;
+    private long bytesOutstanding;
+    private long highWaterBytes;
+    private long requests;
+    private long hits;
+    private long stallNanos;
+
+    /**
+     * @param maxBytes cap on the capacity of all samples not yet released
+     */
+    public SamplePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArrayDeque<EncodedSample>[] free = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        this.free = free;
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ArrayDeque<EncodedSample>();
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1));
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * @return the capacity a sample of {@code size} bytes counts for against
+     *         the cap.
+     */
+    public static int capacityOf(int size) {
+        int sizeClass = sizeClass(size);
+        // samples above the largest class are sized exactly and not kept
+        return sizeClass <= MAX_CLASS_SHIFT - MIN_CLASS_SHIFT ? 1 << (sizeClass + MIN_CLASS_SHIFT) : size;
+    }
+
+    /**
+     * Returns a sample holding a single reference, able to hold at least
+     * {@code size} bytes. Blocks while the pool is at its cap.
+     */
+    public synchronized EncodedSample obtain(int size) throws InterruptedException {
+        int sizeClass = sizeClass(size);
+        boolean pooled = sizeClass < free.length;
+        int capacity = capacityOf(size);
+
+        if (bytesOutstanding > 0 && bytesOutstanding + capacity > maxBytes) {
+            long stalled = System.nanoTime();
+            do {
+                wait();
+            } while (bytesOutstanding > 0 && bytesOutstanding + capacity > maxBytes);
+            stallNanos += System.nanoTime() - stalled;
+        }
+
+        requests++;
+        EncodedSample sample = pooled ? free[sizeClass].poll() : null;
+        if (sample != null)
+            hits++;
+        else
+            sample = new EncodedSample(this, capacity);
+        bytesOutstanding += capacity;
+        highWaterBytes = Math.max(highWaterBytes, bytesOutstanding);
+        sample.acquired();
+        return sample;
+    }
+
+    synchronized void recycle(EncodedSample sample) {
+        int capacity = sample.data.capacity();
+        bytesOutstanding -= capacity;
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < free.length)
+            free[sizeClass].add(sample);
+        notifyAll();
+    }
+
+    public synchronized long getBytesOutstanding() {
+        return bytesOutstanding;
+    }
+
+    public synchronized long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    public synchronized double getHitRate() {
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return time spent blocked in {@link #obtain} waiting for the cap
+     */
+    public synchronized long getStallNanos() {
+        return stallNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "SamplePool: %d requests, %.1f%% hits, high water %dk of %dk, %dk outstanding, stalled %dms",
+                requests, getHitRate() * 100, highWaterBytes / 1024, maxBytes / 1024,
+                bytesOutstanding / 1024, stallNanos / 1000000L);
+    }
+}
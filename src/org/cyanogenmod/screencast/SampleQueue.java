@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi producer, single consumer queue of samples. Each
+ * slot carries a sequence number telling producers and the consumer whose
+ * turn it is, so neither side allocates or takes a lock.
+ */
+class SampleQueue {
+    private final EncodedSample[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // only touched by the consumer
+    private long head;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public SampleQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new EncodedSample[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /**
+     * May be called from any thread.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(EncodedSample sample) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[index] = sample;
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            }
+            else if (diff < 0) {
+                return false;
+            }
+            else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Consumer thread only.
+     *
+     * @return the oldest sample, or null if the queue is empty
+     */
+    public EncodedSample poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1)
+            return null;
+        EncodedSample sample = slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, head + slots.length);
+        head++;
+        return sample;
+    }
+}
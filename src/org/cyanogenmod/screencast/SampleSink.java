@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaFormat;
+
+/**
+ * Consumer of the encoded output of a {@link RecordingDevice}. All calls are
+ * made on the encoder thread. Tracks are numbered by the pipeline, see
+ * {@link Recorder#TRACK_VIDEO} and {@link Recorder#TRACK_AUDIO}.
+ */
+interface SampleSink {
+    /**
+     * Called once before the first sample, when the output formats of all
+     * tracks are known.
+     *
+     * @param formats output format of each track, indexed by track
+     */
+    void start(MediaFormat[] formats) throws Exception;
+
+    /**
+     * Takes over the caller's reference to the sample. The sample may be
+     * shared with other sinks, so its payload must only be read, through
+     * absolute gets or a duplicate of the buffer.
+     */
+    void write(EncodedSample sample) throws InterruptedException;
+
+    /**
+     * No more samples follow. Also called if the pipeline fails.
+     */
+    void finish();
+}
@@ -24,10 +24,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
@@ -43,6 +45,7 @@ import android.widget.Toast;
 import android.graphics.Point;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -52,19 +55,64 @@ public class ScreencastService extends Service {
     public static final String SCREENCASTER_NAME = "hidden:screen-recording";
     public static final String PREFS = "preferences";
     static final String KEY_RECORDING = "recording";
+    // recoverable recording in progress, left behind if the process dies
+    static final String KEY_RECORDING_PATH = "recording_path";
     static final String EXTRA_WITHAUDIO = "withaudio";
+    // split the recording into segments of at most this many seconds / MB
+    static final String EXTRA_SEGMENT_SECONDS = "segment_seconds";
+    static final String EXTRA_SEGMENT_MEGABYTES = "segment_megabytes";
+    // write fragmented mp4 flushed every this many milliseconds
+    static final String EXTRA_FRAGMENT_MILLIS = "fragment_millis";
+    static final String EXTRA_STREAM_PORT = "stream_port";
+    // serve the stream to the network, not just on the device
+    static final String EXTRA_STREAM_LAN = "stream_lan";
+    // record to a file while streaming
+    static final String EXTRA_STREAM_RECORD = "stream_record";
+    // adapt the bitrate to average this many MB per minute of recording
+    static final String EXTRA_BITRATE_BUDGET = "bitrate_budget";
+    // keep capture times and skip idle frames
+    static final String EXTRA_VARIABLE_FRAME_RATE = "variable_frame_rate";
     private long startTime;
+    // while paused the recording length stands still at this time
+    private boolean mPaused;
+    private long mPauseTime;
     private Timer timer;
     private Notification.Builder mBuilder;
     RecordingDevice mRecorder;
+    // encoder set up ahead of a plain recording, for the display size below
+    private RecordingDevice mPrepared;
+    private Point mPreparedSize;
+    private final Handler mHandler = new Handler();
 
     private NotificationManager mNotificationManager;
 
     private static final String ACTION_START_SCREENCAST = "org.cyanogenmod.ACTION_START_SCREENCAST";
     private static final String ACTION_STOP_SCREENCAST = "org.cyanogenmod.ACTION_STOP_SCREENCAST";
+    private static final String ACTION_START_REPLAY = "org.cyanogenmod.ACTION_START_REPLAY";
+    private static final String ACTION_SAVE_REPLAY = "org.cyanogenmod.ACTION_SAVE_REPLAY";
+    private static final String ACTION_START_STREAM = "org.cyanogenmod.ACTION_START_STREAM";
+    private static final String ACTION_PAUSE_SCREENCAST = "org.cyanogenmod.ACTION_PAUSE_SCREENCAST";
+    private static final String ACTION_RESUME_SCREENCAST = "org.cyanogenmod.ACTION_RESUME_SCREENCAST";
+    // keep an encoder ready while a start is likely, e.g. the start button is shown
+    private static final String ACTION_PREPARE_SCREENCAST = "org.cyanogenmod.ACTION_PREPARE_SCREENCAST";
+    private static final String ACTION_UNPREPARE_SCREENCAST = "org.cyanogenmod.ACTION_UNPREPARE_SCREENCAST";
+    // a prepared encoder is let go if no recording starts in this time
+    private static final long PREPARED_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    // the ongoing notification uses id 0, saved replay clips and finished
+    // recordings get their own
+    private static final int NOTIFICATION_CLIP = 1;
+    private static final int NOTIFICATION_RECORDING = 2;
 
     private static final String SHOW_TOUCHES = "show_touches";
 
+    private final Runnable mReleasePrepared = new Runnable() {
+        @Override
+        public void run() {
+            releasePrepared();
+        }
+    };
+
     private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -82,25 +130,54 @@ public class ScreencastService extends Service {
     }
 
     void cleanup() {
-        String recorderPath = null;
-        if (mRecorder != null) {
-            recorderPath = mRecorder.getRecordingFilePath();
-            mRecorder.stop();
-            mRecorder = null;
-        }
         if (timer != null) {
             timer.cancel();
             timer = null;
         }
-        stopForeground(true);
-        if (recorderPath != null) {
-            sendShareNotification(recorderPath);
+        if (mRecorder != null) {
+            // replay clips are shared as they are saved, streams leave nothing
+            final boolean share = mRecorder.hasRecordingFile();
+            final String path = mRecorder.getRecordingFilePath();
+            final String mimeType = mRecorder.getRecordingMimeType();
+            final long timeElapsed = getRecordedTime();
+            // the file is finished in the background, a new recording may
+            // start in the meantime
+            mRecorder.setOnFinishedListener(new RecordingDevice.OnFinishedListener() {
+                @Override
+                public void onRecordingFinished(final File file) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            recordingFinished(path, file != null && share, mimeType, timeElapsed);
+                        }
+                    });
+                }
+            });
+            mRecorder.stop();
+            mRecorder = null;
+            mPaused = false;
+            if (mNotificationManager != null)
+                mNotificationManager.cancel(0);
         }
+        stopForeground(true);
+    }
+
+    private void recordingFinished(String path, boolean share, String mimeType,
+            long timeElapsed) {
+        // complete now, nothing left to recover
+        SharedPreferences prefs = getSharedPreferences(PREFS, 0);
+        if (path.equals(prefs.getString(KEY_RECORDING_PATH, null)))
+            prefs.edit().remove(KEY_RECORDING_PATH).apply();
+        if (share)
+            sendShareNotification(path, mimeType, timeElapsed);
     }
 
     @Override
     public void onCreate() {
-        stopCasting();
+        recoverRecording();
+        // the process died while casting, reset what the cast had set up
+        if (getSharedPreferences(PREFS, 0).getBoolean(KEY_RECORDING, false))
+            stopCasting();
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_USER_BACKGROUND);
         filter.addAction(Intent.ACTION_SHUTDOWN);
@@ -108,8 +185,30 @@ public class ScreencastService extends Service {
         super.onCreate();
     }
 
+    // truncates the torn tail of a recording the previous process died in
+    private void recoverRecording() {
+        String path = getSharedPreferences(PREFS, 0).getString(KEY_RECORDING_PATH, null);
+        if (path == null)
+            return;
+        getSharedPreferences(PREFS, 0).edit().remove(KEY_RECORDING_PATH).apply();
+        final File file = new File(path);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (file.exists() && FragmentedMp4Muxer.recover(file) >= 0)
+                        RecordingDevice.scanFile(ScreencastService.this, file);
+                }
+                catch (IOException e) {
+                    Log.e(LOGTAG, "Can't recover " + file, e);
+                }
+            }
+        }, "RecordingRecovery").start();
+    }
+
     @Override
     public void onDestroy() {
+        releasePrepared();
         stopCasting();
         unregisterReceiver(mBroadcastReceiver);
         super.onDestroy();
@@ -122,8 +221,13 @@ public class ScreencastService extends Service {
         return megAvailable >= 100;
     }
 
+    // the length of the recording so far, not counting pauses
+    private long getRecordedTime() {
+        return (mPaused ? mPauseTime : SystemClock.elapsedRealtime()) - startTime;
+    }
+
     public void updateNotification(Context context) {
-        long timeElapsed = SystemClock.elapsedRealtime() - startTime;
+        long timeElapsed = getRecordedTime();
         mBuilder.setContentText(getString(R.string.video_length,
                 DateUtils.formatElapsedTime(timeElapsed / 1000)));
         mNotificationManager.notify(0, mBuilder.build());
@@ -150,20 +254,101 @@ public class ScreencastService extends Service {
         return ret;
     }
 
-    void registerScreencaster(boolean withAudio) throws RemoteException {
+    // sets up the encoder of a plain recording, so the start only has to
+    // attach the display
+    private void prepareScreencaster(boolean withAudio) {
+        mHandler.removeCallbacks(mReleasePrepared);
+        if (mRecorder != null)
+            return;
+        DisplayManager dm = (DisplayManager)getSystemService(DISPLAY_SERVICE);
+        Display display = dm.getDisplay(Display.DEFAULT_DISPLAY);
+        DisplayMetrics metrics = new DisplayMetrics();
+        display.getMetrics(metrics);
+        Point size = getNativeResolution();
+
+        if (!isPreparedFor(withAudio, size)) {
+            releasePrepared();
+            RecordingDevice device = new RecordingDevice(this, size.x, size.y, withAudio);
+            try {
+                if (device.prepare(this, size.x, size.y, metrics.densityDpi)) {
+                    mPrepared = device;
+                    mPreparedSize = size;
+                }
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, "Can't prepare the encoder", e);
+                device.stop();
+            }
+        }
+        if (mPrepared != null)
+            mHandler.postDelayed(mReleasePrepared, PREPARED_TIMEOUT_MILLIS);
+    }
+
+    private boolean isPreparedFor(boolean withAudio, Point size) {
+        return mPrepared != null && mPrepared.isRecordingAudio() == withAudio
+                && size.equals(mPreparedSize);
+    }
+
+    private void releasePrepared() {
+        mHandler.removeCallbacks(mReleasePrepared);
+        if (mPrepared != null) {
+            mPrepared.stop();
+            mPrepared = null;
+        }
+    }
+
+    void registerScreencaster(boolean withAudio, boolean replay, int streamPort,
+            boolean streamLan, boolean streamRecord, int segmentSeconds, int segmentMegabytes, int fragmentMillis,
+            int budgetMegabytes, boolean variableFrameRate) throws RemoteException {
         DisplayManager dm = (DisplayManager)getSystemService(DISPLAY_SERVICE);
         Display display = dm.getDisplay(Display.DEFAULT_DISPLAY);
         DisplayMetrics metrics = new DisplayMetrics();
         display.getMetrics(metrics);
 
         assert mRecorder == null;
+        long start = SystemClock.elapsedRealtime();
         Point size = getNativeResolution();
         // size = new Point(1080, 1920);
-        mRecorder = new RecordingDevice(this, size.x, size.y, withAudio);
+        if (replay) {
+            int seconds = getResources().getInteger(R.integer.config_replaySeconds);
+            long maxBytes = getResources().getInteger(R.integer.config_replayMaxMegabytes) * 1048576L;
+            mRecorder = new ReplayDevice(this, size.x, size.y, withAudio, seconds, maxBytes);
+        } else {
+            if (streamPort < 0 && isPreparedFor(withAudio, size)) {
+                mRecorder = mPrepared;
+                mPrepared = null;
+                mRecorder.renewRecordingFile();
+            } else {
+                mRecorder = streamPort >= 0
+                        ? new StreamingDevice(this, size.x, size.y, withAudio, streamPort,
+                                streamLan, streamRecord)
+                        : new RecordingDevice(this, size.x, size.y, withAudio);
+            }
+            mRecorder.setSegmentLimits(segmentSeconds, segmentMegabytes);
+            mRecorder.setFragmentInterval(fragmentMillis);
+            if (mRecorder.isRecoverable()) {
+                getSharedPreferences(PREFS, 0).edit()
+                        .putString(KEY_RECORDING_PATH, mRecorder.getRecordingFilePath()).apply();
+            }
+        }
+        // encoders are scarce, don't hold on to one that won't be used
+        releasePrepared();
+        mRecorder.setVariableFrameRate(variableFrameRate);
+        int minBitrate = getResources().getInteger(R.integer.config_minBitrateKbps) * 1000;
+        int streamKbps = getResources().getInteger(R.integer.config_streamBitrateKbps);
+        if (streamPort >= 0 && streamKbps > 0) {
+            mRecorder.setBitrateBudget(streamKbps * 1000, minBitrate);
+        } else if (budgetMegabytes > 0) {
+            mRecorder.setBitrateBudget((int) (budgetMegabytes * 8L * 1048576L / 60), minBitrate);
+        }
         VirtualDisplay vd = mRecorder.registerVirtualDisplay(this,
                 SCREENCASTER_NAME, size.x, size.y, metrics.densityDpi);
-        if (vd == null)
+        if (vd == null) {
             cleanup();
+            return;
+        }
+        Log.i(LOGTAG, (mRecorder.isWarm() ? "Warm" : "Cold") + " start took "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
     private void stopCasting() {
@@ -191,6 +376,8 @@ public class ScreencastService extends Service {
            return START_STICKY;
         } else if (TextUtils.equals(intent.getAction(), ACTION_START_SCREENCAST)
                  || TextUtils.equals(intent.getAction(), "com.cyanogenmod.ACTION_START_SCREENCAST")
+                 || TextUtils.equals(intent.getAction(), ACTION_START_REPLAY)
+                 || TextUtils.equals(intent.getAction(), ACTION_START_STREAM)
                 ) {
             try {
                 if (!hasAvailableSpace()) {
@@ -199,7 +386,27 @@ public class ScreencastService extends Service {
                 }
                 startTime = SystemClock.elapsedRealtime();
                 boolean withAudio = intent.getBooleanExtra(EXTRA_WITHAUDIO, true);
-                registerScreencaster(withAudio);
+                boolean replay = TextUtils.equals(intent.getAction(), ACTION_START_REPLAY);
+                // -1 records to a file
+                int streamPort = !TextUtils.equals(intent.getAction(), ACTION_START_STREAM) ? -1
+                        : intent.getIntExtra(EXTRA_STREAM_PORT,
+                                getResources().getInteger(R.integer.config_streamPort));
+                int segmentSeconds = intent.getIntExtra(EXTRA_SEGMENT_SECONDS,
+                        getResources().getInteger(R.integer.config_segmentSeconds));
+                int segmentMegabytes = intent.getIntExtra(EXTRA_SEGMENT_MEGABYTES,
+                        getResources().getInteger(R.integer.config_segmentMegabytes));
+                int fragmentMillis = intent.getIntExtra(EXTRA_FRAGMENT_MILLIS,
+                        getResources().getInteger(R.integer.config_fragmentMillis));
+                boolean streamLan = intent.getBooleanExtra(EXTRA_STREAM_LAN,
+                        getResources().getBoolean(R.bool.config_streamLan));
+                boolean streamRecord = intent.getBooleanExtra(EXTRA_STREAM_RECORD, false);
+                int budgetMegabytes = intent.getIntExtra(EXTRA_BITRATE_BUDGET,
+                        getResources().getInteger(R.integer.config_bitrateBudgetMegabytes));
+                boolean variableFrameRate = intent.getBooleanExtra(EXTRA_VARIABLE_FRAME_RATE,
+                        getResources().getBoolean(R.bool.config_variableFrameRate));
+                registerScreencaster(withAudio, replay, streamPort, streamLan, streamRecord,
+                        segmentSeconds, segmentMegabytes, fragmentMillis, budgetMegabytes,
+                        variableFrameRate);
                 mBuilder = createNotificationBuilder();
                 mNotificationManager =
                         (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
@@ -224,8 +431,18 @@ public class ScreencastService extends Service {
             catch (Exception e) {
                 Log.e("Mirror", "error", e);
             }
+        } else if (TextUtils.equals(intent.getAction(), ACTION_PREPARE_SCREENCAST)) {
+            prepareScreencaster(intent.getBooleanExtra(EXTRA_WITHAUDIO, true));
+        } else if (TextUtils.equals(intent.getAction(), ACTION_UNPREPARE_SCREENCAST)) {
+            releasePrepared();
         } else if (TextUtils.equals(intent.getAction(), ACTION_STOP_SCREENCAST)) {
             stopCasting();
+        } else if (TextUtils.equals(intent.getAction(), ACTION_SAVE_REPLAY)) {
+            saveReplay();
+        } else if (TextUtils.equals(intent.getAction(), ACTION_PAUSE_SCREENCAST)) {
+            pauseCasting();
+        } else if (TextUtils.equals(intent.getAction(), ACTION_RESUME_SCREENCAST)) {
+            resumeCasting();
         } else if (intent.getAction().equals("org.cyanogenmod.SHOW_TOUCHES")) {
             String showTouchesValue = intent.getStringExtra(SHOW_TOUCHES);
             mBuilder = createNotificationBuilder();
@@ -255,11 +472,81 @@ public class ScreencastService extends Service {
         }
     }
 
+    // the encoder and the file stay open, so resuming is instant
+    private void pauseCasting() {
+        // a replay is never paused, the notification has no way to resume it
+        if (mRecorder == null || mPaused || mRecorder instanceof ReplayDevice) {
+            return;
+        }
+        mRecorder.pause();
+        mPaused = true;
+        mPauseTime = SystemClock.elapsedRealtime();
+        refreshNotification();
+    }
+
+    private void resumeCasting() {
+        if (mRecorder == null || !mPaused) {
+            return;
+        }
+        mRecorder.resume();
+        // the pause doesn't count towards the length
+        startTime += SystemClock.elapsedRealtime() - mPauseTime;
+        mPaused = false;
+        refreshNotification();
+    }
+
+    private void refreshNotification() {
+        mBuilder = createNotificationBuilder();
+        if (Process.myUserHandle().isOwner()) {
+            addNotificationTouchButton(
+                    Settings.System.getInt(getContentResolver(), SHOW_TOUCHES, 0) != 0);
+        }
+        updateNotification(this);
+    }
+
+    private void saveReplay() {
+        if (!(mRecorder instanceof ReplayDevice)) {
+            return;
+        }
+        boolean saving = ((ReplayDevice) mRecorder).saveClip(new ReplayBuffer.OnSavedListener() {
+            @Override
+            public void onClipSaved(final File file, final long durationUs) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Notification.Builder builder = createShareNotificationBuilder(
+                                file.getAbsolutePath(), "video/mp4", durationUs / 1000L);
+                        mNotificationManager.notify(NOTIFICATION_CLIP, builder.build());
+                    }
+                });
+            }
+        });
+        if (!saving) {
+            Toast.makeText(this, R.string.replay_nothing_to_save, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private Notification.Builder createNotificationBuilder() {
+        boolean replay = mRecorder instanceof ReplayDevice;
+        int title = replay ? R.string.replay_running
+                : mPaused ? R.string.recording_paused
+                : mRecorder instanceof StreamingDevice ? R.string.streaming : R.string.recording;
         Notification.Builder builder = new Notification.Builder(this)
                 .setOngoing(true)
                 .setSmallIcon(R.drawable.ic_stat_device_access_video)
-                .setContentTitle(getString(R.string.recording));
+                .setContentTitle(getString(title));
+        if (replay) {
+            Intent saveReplay = new Intent(ACTION_SAVE_REPLAY);
+            saveReplay.setClass(this, ScreencastService.class);
+            builder.addAction(R.drawable.ic_share, getString(R.string.save_clip),
+                    PendingIntent.getService(this, 0, saveReplay, 0));
+        } else {
+            Intent pause = new Intent(mPaused ? ACTION_RESUME_SCREENCAST : ACTION_PAUSE_SCREENCAST);
+            pause.setClass(this, ScreencastService.class);
+            builder.addAction(mPaused ? R.drawable.ic_resume : R.drawable.ic_pause,
+                    getString(mPaused ? R.string.resume : R.string.pause),
+                    PendingIntent.getService(this, 0, pause, 0));
+        }
         Intent stopRecording = new Intent(ACTION_STOP_SCREENCAST);
         stopRecording.setClass(this, ScreencastService.class);
         builder.addAction(R.drawable.ic_stop, getString(R.string.stop),
@@ -267,26 +554,28 @@ public class ScreencastService extends Service {
         return builder;
     }
 
-    private void sendShareNotification(String recordingFilePath) {
+    private void sendShareNotification(String recordingFilePath, String mimeType,
+            long timeElapsed) {
         // share the screencast file
-        mBuilder = createShareNotificationBuilder(recordingFilePath);
-        mNotificationManager.notify(0, mBuilder.build());
+        Notification.Builder builder =
+                createShareNotificationBuilder(recordingFilePath, mimeType, timeElapsed);
+        mNotificationManager.notify(NOTIFICATION_RECORDING, builder.build());
     }
 
-    private Notification.Builder createShareNotificationBuilder(String file) {
+    private Notification.Builder createShareNotificationBuilder(String file, String mimeType,
+            long timeElapsed) {
         Intent sharingIntent = new Intent(Intent.ACTION_SEND);
-        sharingIntent.setType("video/mp4");
+        sharingIntent.setType(mimeType);
         Uri uri = Uri.parse("file://" + file);
         sharingIntent.putExtra(Intent.EXTRA_STREAM, uri);
         sharingIntent.putExtra(Intent.EXTRA_SUBJECT, new File(file).getName());
         Intent chooserIntent = Intent.createChooser(sharingIntent, null);
         chooserIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK);
-        long timeElapsed = SystemClock.elapsedRealtime() - startTime;
 
         Log.i(LOGTAG, "Video complete: " + uri);
 
         Intent open = new Intent(Intent.ACTION_VIEW);
-        open.setDataAndType(uri, "video/mp4");
+        open.setDataAndType(uri, mimeType);
         open.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         PendingIntent contentIntent =
                 PendingIntent.getActivity(this, 0, open, PendingIntent.FLAG_CANCEL_CURRENT);
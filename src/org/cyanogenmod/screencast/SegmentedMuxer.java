@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * {@link Muxer} splitting the recording into a series of standalone mp4
+ * files. A new segment is started on the first video keyframe after the
+ * current one reaches its duration or size limit, and the encoder is asked
+ * for that keyframe as soon as the limit is reached. Finished segments are
+ * listed in an m3u playlist, so everything up to the last complete segment
+ * survives the process being killed.
+ *
+ * A segment overruns its limits until that keyframe arrives. While the
+ * screen is static the virtual display puts out no frames, so the encoder
+ * has to be set to repeat the last one, as {@link RecordingDevice} does, or
+ * the overrun has no bound.
+ */
+class SegmentedMuxer implements Muxer {
+    private static final String LOGTAG = "SegmentedMuxer";
+
+    interface OnSegmentListener {
+        /**
+         * Called on the writing thread when a segment file is complete.
+         */
+        void onSegmentComplete(File segment);
+    }
+
+    private final String basePath;
+    private final File manifest;
+    private final long maxDurationUs;
+    private final long maxBytes;
+    private final Runnable keyFrameRequest;
+    private final OnSegmentListener listener;
+    private final ArrayList<MediaFormat> formats = new ArrayList<MediaFormat>();
+    private final MediaCodec.BufferInfo rebased = new MediaCodec.BufferInfo();
+    private int videoTrack = -1;
+
+    private Mp4Muxer segment;
+    private File segmentFile;
+    private int[] segmentTracks;
+    private int segmentCount;
+    private long segmentStartUs;
+    private long segmentEndUs;
+    private long segmentBytes;
+    private boolean keyFrameRequested;
+
+    /**
+     * @param manifest playlist to write, segments are named after it
+     * @param maxDurationUs segment length limit, 0 for none
+     * @param maxBytes segment size limit, 0 for none
+     * @param keyFrameRequest asks the video encoder for a keyframe
+     */
+    public SegmentedMuxer(File manifest, long maxDurationUs, long maxBytes,
+            Runnable keyFrameRequest, OnSegmentListener listener) {
+        String path = manifest.getAbsolutePath();
+        int dot = path.lastIndexOf('.');
+        this.basePath = dot > 0 ? path.substring(0, dot) : path;
+        this.manifest = manifest;
+        this.maxDurationUs = maxDurationUs;
+        this.maxBytes = maxBytes;
+        this.keyFrameRequest = keyFrameRequest;
+        this.listener = listener;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime != null && mime.startsWith("video/"))
+            videoTrack = formats.size();
+        formats.add(format);
+        return formats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        try {
+            FileWriter writer = new FileWriter(manifest);
+            writer.write("#EXTM3U\n");
+            writer.close();
+            openSegment(0);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Can't start segment", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        long ptsUs = info.presentationTimeUs;
+        boolean full = (maxDurationUs > 0 && ptsUs - segmentStartUs >= maxDurationUs)
+                || (maxBytes > 0 && segmentBytes >= maxBytes);
+        if (full && trackIndex == videoTrack
+                && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            try {
+                closeSegment();
+                openSegment(ptsUs);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Can't rotate segment", e);
+            }
+        }
+        else if (full && !keyFrameRequested) {
+            // cut as soon as possible rather than at the next regular keyframe
+            keyFrameRequest.run();
+            keyFrameRequested = true;
+        }
+
+        rebased.set(info.offset, info.size, Math.max(0, ptsUs - segmentStartUs), info.flags);
+        segment.writeSampleData(segmentTracks[trackIndex], buffer, rebased);
+        segmentBytes += info.size;
+        segmentEndUs = Math.max(segmentEndUs, ptsUs);
+    }
+
+    @Override
+    public void stop() {
+        try {
+            closeSegment();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Can't finish segment", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (segment != null) {
+            segment.release();
+            segment = null;
+        }
+    }
+
+    private void openSegment(long startUs) throws IOException {
+        segmentCount++;
+        segmentFile = new File(String.format(Locale.US, "%s_%03d.mp4", basePath, segmentCount));
+        segment = new Mp4Muxer(segmentFile.getAbsolutePath());
+        segmentTracks = new int[formats.size()];
+        for (int i = 0; i < segmentTracks.length; i++)
+            segmentTracks[i] = segment.addTrack(formats.get(i));
+        segment.start();
+        segmentStartUs = startUs;
+        segmentEndUs = startUs;
+        segmentBytes = 0;
+        keyFrameRequested = false;
+        Log.i(LOGTAG, "Started segment " + segmentFile);
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null)
+            return;
+        segment.stop();
+        segment.release();
+        segment = null;
+
+        FileWriter writer = new FileWriter(manifest, true);
+        writer.write(String.format(Locale.US, "#EXTINF:%.3f,\n%s\n",
+                (segmentEndUs - segmentStartUs) / 1000000.0, segmentFile.getName()));
+        writer.close();
+        if (listener != null)
+            listener.onSegmentComplete(segmentFile);
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Serves a stream of chunks to any number of TCP clients from a single
+ * non-blocking selector thread. {@link #send} never blocks: every client has
+ * its own bounded queue, and a client that falls behind has its queue
+ * dropped and skips ahead to the next keyframe. Only clients on the device
+ * itself, e.g. through {@code adb forward}, can connect unless the server is
+ * opened to the network.
+ */
+class StreamServer implements Runnable {
+    private static final String LOGTAG = "StreamServer";
+
+    private final int port;
+    private final boolean lan;
+    private final long maxQueuedBytes;
+    private final ArrayList<Client> clients = new ArrayList<Client>();
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    private static class Client {
+        final SocketChannel channel;
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+        long queuedBytes;
+        // new and lagging clients only start again on a keyframe
+        boolean waitForKeyframe = true;
+        int dropped;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void offer(ByteBuffer chunk, boolean keyframe, long maxQueuedBytes) {
+            if (queuedBytes + chunk.remaining() > maxQueuedBytes) {
+                // keep a partly sent chunk, the receiver would lose sync
+                ByteBuffer head = queue.peek();
+                boolean keepHead = head != null && head.position() > 0;
+                dropped += queue.size() - (keepHead ? 1 : 0);
+                queue.clear();
+                queuedBytes = 0;
+                if (keepHead) {
+                    queue.add(head);
+                    queuedBytes = head.limit();
+                }
+                waitForKeyframe = true;
+            }
+            if (waitForKeyframe) {
+                if (!keyframe) {
+                    dropped++;
+                    return;
+                }
+                waitForKeyframe = false;
+            }
+            queue.add(chunk);
+            queuedBytes += chunk.limit();
+        }
+
+        synchronized boolean hasPending() {
+            return !queue.isEmpty();
+        }
+
+        synchronized void flush() throws IOException {
+            ByteBuffer head;
+            while ((head = queue.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining())
+                    return;
+                queue.poll();
+                queuedBytes -= head.limit();
+            }
+        }
+    }
+
+    /**
+     * @param port port to listen on, 0 for any free one
+     * @param lan listen on every interface rather than on loopback only
+     * @param maxQueuedBytes how much may be queued for a client before it
+     *        starts dropping
+     */
+    public StreamServer(int port, boolean lan, long maxQueuedBytes) {
+        this.port = port;
+        this.lan = lan;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(lan ? new InetSocketAddress(port)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "StreamServer");
+        thread.start();
+        Log.i(LOGTAG, "Streaming on " + getAddress().getHostAddress() + ":" + getPort());
+    }
+
+    /**
+     * @return the address the server is listening on, the wildcard address
+     *         if it listens on every interface.
+     */
+    public InetAddress getAddress() {
+        return server.socket().getInetAddress();
+    }
+
+    /**
+     * @return the port the server is listening on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getClientCount() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    /**
+     * Queues a chunk for every client. The chunk is shared and must not be
+     * modified afterwards.
+     *
+     * @param keyframe whether clients can start decoding at this chunk
+     */
+    public void send(ByteBuffer chunk, boolean keyframe) {
+        synchronized (clients) {
+            if (clients.isEmpty())
+                return;
+            for (Client client : clients)
+                client.offer(chunk.duplicate(), keyframe, maxQueuedBytes);
+        }
+        selector.wakeup();
+    }
+
+    public void close() {
+        running = false;
+        if (selector != null)
+            selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer discard = ByteBuffer.allocate(1024);
+        try {
+            while (running) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            // clients have nothing to say, this only notices them leaving
+                            discard.clear();
+                            if (client.channel.read(discard) < 0) {
+                                disconnect(key, client);
+                                continue;
+                            }
+                        }
+                        if (key.isWritable())
+                            client.flush();
+                    }
+                    catch (IOException e) {
+                        disconnect(key, client);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                synchronized (clients) {
+                    for (Client client : clients) {
+                        SelectionKey key = client.channel.keyFor(selector);
+                        int ops = SelectionKey.OP_READ
+                                | (client.hasPending() ? SelectionKey.OP_WRITE : 0);
+                        if (key != null && key.isValid() && key.interestOps() != ops)
+                            key.interestOps(ops);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.e(LOGTAG, "Stream server failed", e);
+        }
+        finally {
+            synchronized (clients) {
+                for (Client client : clients) {
+                    try {
+                        client.channel.close();
+                    }
+                    catch (IOException e) {
+                    }
+                }
+                clients.clear();
+            }
+            try {
+                server.close();
+                selector.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        synchronized (clients) {
+            clients.add(client);
+        }
+        Log.i(LOGTAG, "Client connected: " + channel.socket().getRemoteSocketAddress());
+    }
+
+    private void disconnect(SelectionKey key, Client client) {
+        key.cancel();
+        try {
+            client.channel.close();
+        }
+        catch (IOException e) {
+        }
+        synchronized (clients) {
+            clients.remove(client);
+        }
+        Log.i(LOGTAG, "Client disconnected, " + client.dropped + " chunks dropped");
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Live streaming: serves the encoded screen as an MPEG transport stream to
+ * TCP clients, optionally recording it to a file from the same encode.
+ */
+class StreamingDevice extends RecordingDevice {
+    // per client, about a second of video at the maximum bitrate
+    private static final long MAX_QUEUED_BYTES = 2 * 1024 * 1024;
+
+    private final StreamServer server;
+    private final boolean record;
+
+    /**
+     * @param port TCP port to serve on, 0 for any free one
+     * @param lan serve to the network rather than to the device only
+     * @param record also record to {@link #path}
+     */
+    public StreamingDevice(Context context, int width, int height, boolean recordAudio, int port,
+            boolean lan, boolean record) {
+        super(context, width, height, recordAudio);
+        server = new StreamServer(port, lan, MAX_QUEUED_BYTES);
+        this.record = record;
+    }
+
+    @Override
+    public boolean hasRecordingFile() {
+        return record;
+    }
+
+    @Override
+    protected SampleSink createSink() throws IOException {
+        if (!record)
+            return createStreamSink();
+        // the file must be complete, the stream may skip
+        FanOutSink sink = new FanOutSink();
+        sink.addSink(createFileSink(), FanOutSink.POLICY_BLOCK);
+        sink.addSink(createStreamSink(), FanOutSink.POLICY_DROP);
+        return sink;
+    }
+
+    private SampleSink createStreamSink() {
+        return new SampleSink() {
+            private TsPacketizer packetizer;
+
+            @Override
+            public void start(MediaFormat[] formats) throws Exception {
+                packetizer = new TsPacketizer(formats[Recorder.TRACK_VIDEO],
+                        formats.length > Recorder.TRACK_AUDIO ? formats[Recorder.TRACK_AUDIO] : null);
+                server.start();
+            }
+
+            @Override
+            public void write(EncodedSample sample) {
+                try {
+                    boolean keyframe = sample.track == Recorder.TRACK_VIDEO
+                            && (sample.info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                    ByteBuffer packets = packetizer.packetize(sample);
+                    server.send(packets, keyframe);
+                }
+                finally {
+                    sample.release();
+                }
+            }
+
+            @Override
+            public void finish() {
+                server.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs encoded H.264 and AAC samples into an MPEG transport stream. Each
+ * sample becomes one PES packet split over 188 byte TS packets. The PAT and
+ * PMT are repeated, and the SPS/PPS prepended, before every video keyframe,
+ * so a receiver can join the stream at any keyframe. AAC frames get an ADTS
+ * header.
+ */
+class TsPacketizer {
+    static final int PACKET_SIZE = 188;
+
+    private static final int PID_PAT = 0;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_VIDEO = 0x100;
+    private static final int PID_AUDIO = 0x101;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_ADTS = 0x0f;
+    // presentation times run this far (90kHz) ahead of the clock reference
+    // to give receivers some room to buffer
+    private static final long PTS_DELAY = 27000;
+
+    private static final byte[] ACCESS_UNIT_DELIMITER = { 0, 0, 0, 1, 9, (byte) 0xf0 };
+
+    private final byte[] parameterSets;
+    private final byte[] adts;
+    private final byte[] pat;
+    private final byte[] pmt;
+    // continuity counters
+    private int patCount, pmtCount, videoCount, audioCount;
+    private byte[] pes = new byte[64 * 1024];
+
+    /**
+     * @param audio output format of the audio encoder, null for none
+     */
+    public TsPacketizer(MediaFormat video, MediaFormat audio) {
+        parameterSets = concat(video, "csd-0", "csd-1");
+        adts = audio != null ? adtsHeader(audio.getByteBuffer("csd-0")) : null;
+
+        pat = new byte[] {
+            0, (byte) 0xb0, 13, 0, 1, (byte) 0xc1, 0, 0,
+            // program 1
+            0, 1, (byte) (0xe0 | (PID_PMT >> 8)), (byte) PID_PMT,
+        };
+        int streams = audio != null ? 2 : 1;
+        pmt = new byte[12 + 5 * streams];
+        int i = 0;
+        pmt[i++] = 2;
+        pmt[i++] = (byte) 0xb0;
+        pmt[i++] = (byte) (pmt.length - 3 + 4);
+        pmt[i++] = 0;
+        pmt[i++] = 1;
+        pmt[i++] = (byte) 0xc1;
+        pmt[i++] = 0;
+        pmt[i++] = 0;
+        // the clock reference goes with the video
+        pmt[i++] = (byte) (0xe0 | (PID_VIDEO >> 8));
+        pmt[i++] = (byte) PID_VIDEO;
+        pmt[i++] = (byte) 0xf0;
+        pmt[i++] = 0;
+        i = putStream(pmt, i, STREAM_TYPE_H264, PID_VIDEO);
+        if (audio != null)
+            putStream(pmt, i, STREAM_TYPE_ADTS, PID_AUDIO);
+    }
+
+    /**
+     * @return the TS packets carrying the sample, in a new buffer that is
+     *         never modified again.
+     */
+    public ByteBuffer packetize(EncodedSample sample) {
+        boolean video = sample.track == Recorder.TRACK_VIDEO;
+        boolean keyframe = video && (sample.info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        long ts = sample.info.presentationTimeUs * 9 / 100;
+        int size = sample.info.size;
+
+        int prefix = video ? ACCESS_UNIT_DELIMITER.length + (keyframe ? parameterSets.length : 0)
+                : adts.length;
+        int pesSize = 14 + prefix + size;
+        if (pes.length < pesSize)
+            pes = new byte[Math.max(pesSize, pes.length * 2)];
+        int i = putPesHeader(pes, video ? 0xe0 : 0xc0, video ? 0 : pesSize - 6, ts + PTS_DELAY);
+        if (video) {
+            System.arraycopy(ACCESS_UNIT_DELIMITER, 0, pes, i, ACCESS_UNIT_DELIMITER.length);
+            i += ACCESS_UNIT_DELIMITER.length;
+            if (keyframe) {
+                System.arraycopy(parameterSets, 0, pes, i, parameterSets.length);
+                i += parameterSets.length;
+            }
+        }
+        else {
+            int frame = size + adts.length;
+            System.arraycopy(adts, 0, pes, i, adts.length);
+            pes[i + 3] = (byte) ((adts[3] & 0xc0) | (frame >> 11));
+            pes[i + 4] = (byte) (frame >> 3);
+            pes[i + 5] = (byte) (((frame & 7) << 5) | 0x1f);
+            i += adts.length;
+        }
+        ByteBuffer data = sample.data.duplicate();
+        data.position(0).limit(size);
+        data.get(pes, i, size);
+
+        // the PCR needs room in the first packet
+        int packets = (pesSize + 8 + 183) / 184 + (keyframe ? 2 : 0);
+        ByteBuffer out = ByteBuffer.allocate(packets * PACKET_SIZE);
+        if (keyframe) {
+            patCount = putSection(out, PID_PAT, patCount, pat);
+            pmtCount = putSection(out, PID_PMT, pmtCount, pmt);
+        }
+        if (video)
+            videoCount = putPes(out, PID_VIDEO, videoCount, pesSize, ts, keyframe);
+        else
+            audioCount = putPes(out, PID_AUDIO, audioCount, pesSize, -1, false);
+        out.flip();
+        return out;
+    }
+
+    private int putPes(ByteBuffer out, int pid, int count, int pesSize, long pcr, boolean random) {
+        int pos = 0;
+        boolean first = true;
+        while (pos < pesSize) {
+            out.put((byte) 0x47);
+            out.put((byte) ((first ? 0x40 : 0) | (pid >> 8)));
+            out.put((byte) pid);
+            boolean pcrHere = first && pcr >= 0;
+            int fields = pcrHere ? 8 : 0;
+            int payload = Math.min(pesSize - pos, 184 - fields);
+            // the last packet is padded with adaptation field stuffing
+            int adaptation = 184 - payload;
+            if (adaptation > 0) {
+                out.put((byte) (0x30 | count));
+                out.put((byte) (adaptation - 1));
+                if (adaptation > 1) {
+                    out.put((byte) ((pcrHere ? 0x10 : 0) | (first && random ? 0x40 : 0)));
+                    int stuffing = adaptation - 2;
+                    if (pcrHere) {
+                        out.put((byte) (pcr >> 25)).put((byte) (pcr >> 17))
+                                .put((byte) (pcr >> 9)).put((byte) (pcr >> 1))
+                                .put((byte) (((pcr & 1) << 7) | 0x7e)).put((byte) 0);
+                        stuffing -= 6;
+                    }
+                    for (int s = 0; s < stuffing; s++)
+                        out.put((byte) 0xff);
+                }
+            }
+            else {
+                out.put((byte) (0x10 | count));
+            }
+            out.put(pes, pos, payload);
+            pos += payload;
+            count = (count + 1) & 0xf;
+            first = false;
+        }
+        return count;
+    }
+
+    private static int putSection(ByteBuffer out, int pid, int count, byte[] section) {
+        int start = out.position();
+        out.put((byte) 0x47).put((byte) (0x40 | (pid >> 8))).put((byte) pid);
+        out.put((byte) (0x10 | count));
+        // pointer field
+        out.put((byte) 0);
+        out.put(section);
+        out.putInt(crc32(section));
+        while (out.position() < start + PACKET_SIZE)
+            out.put((byte) 0xff);
+        return (count + 1) & 0xf;
+    }
+
+    private static int putPesHeader(byte[] pes, int streamId, int length, long pts) {
+        pes[0] = 0;
+        pes[1] = 0;
+        pes[2] = 1;
+        pes[3] = (byte) streamId;
+        // 0 is unbounded, allowed for video only
+        if (length > 0xffff)
+            length = 0;
+        pes[4] = (byte) (length >> 8);
+        pes[5] = (byte) length;
+        // data aligned, PTS only
+        pes[6] = (byte) 0x84;
+        pes[7] = (byte) 0x80;
+        pes[8] = 5;
+        pes[9] = (byte) (0x21 | ((pts >> 29) & 0x0e));
+        pes[10] = (byte) (pts >> 22);
+        pes[11] = (byte) (((pts >> 14) & 0xfe) | 1);
+        pes[12] = (byte) (pts >> 7);
+        pes[13] = (byte) (((pts << 1) & 0xfe) | 1);
+        return 14;
+    }
+
+    private static int putStream(byte[] pmt, int i, int type, int pid) {
+        pmt[i++] = (byte) type;
+        pmt[i++] = (byte) (0xe0 | (pid >> 8));
+        pmt[i++] = (byte) pid;
+        pmt[i++] = (byte) 0xf0;
+        pmt[i++] = 0;
+        return i;
+    }
+
+    // the length fields are filled in per frame
+    private static byte[] adtsHeader(ByteBuffer config) {
+        int type = (config.get(0) >> 3) & 0x1f;
+        int frequency = ((config.get(0) & 7) << 1) | ((config.get(1) >> 7) & 1);
+        int channels = (config.get(1) >> 3) & 0xf;
+        // HE-AAC is signalled implicitly, as AAC LC at the core rate
+        if (type == 5 || type == 29)
+            type = 2;
+        return new byte[] {
+            (byte) 0xff, (byte) 0xf1,
+            (byte) (((type - 1) << 6) | (frequency << 2) | (channels >> 2)),
+            (byte) ((channels & 3) << 6), 0, 0, (byte) 0xfc,
+        };
+    }
+
+    private static byte[] concat(MediaFormat format, String... keys) {
+        int size = 0;
+        for (String key : keys) {
+            if (format.containsKey(key))
+                size += format.getByteBuffer(key).remaining();
+        }
+        byte[] out = new byte[size];
+        int i = 0;
+        for (String key : keys) {
+            if (!format.containsKey(key))
+                continue;
+            ByteBuffer csd = format.getByteBuffer(key).duplicate();
+            int n = csd.remaining();
+            csd.get(out, i, n);
+            i += n;
+        }
+        return out;
+    }
+
+    // CRC-32/MPEG-2
+    private static int crc32(byte[] data) {
+        int crc = 0xffffffff;
+        for (byte b : data) {
+            crc ^= (b & 0xff) << 24;
+            for (int k = 0; k < 8; k++)
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.xml.sax.Attributes;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import safesax.Element;
+import safesax.ElementListener;
+import safesax.Parsers;
+import safesax.RootElement;
+import safesax.StopParsingException;
+
+/**
+ * The h264 VideoEncoderCap of media_profiles.xml. Parsing the whole file
+ * costs more than anything else before the encoder starts, so the result is
+ * kept in memory and in a small binary file in the cache dir, both keyed on
+ * the path, mtime and size of the profiles. The file is only parsed again
+ * when it changes, i.e. after a system update.
+ */
+class VideoEncoderCap {
+    private static final String LOGTAG = "VideoEncoderCap";
+    static final File MEDIA_PROFILES = new File("/system/etc/media_profiles.xml");
+    private static final String CACHE_FILE = "video_encoder_cap";
+    // bump when the cache layout changes
+    private static final int CACHE_VERSION = 1;
+
+    private static VideoEncoderCap sCached;
+
+    final int maxFrameWidth;
+    final int maxFrameHeight;
+    final int maxBitRate;
+    // what the values were read from
+    private final String path;
+    private final long modified;
+    private final long length;
+
+    private VideoEncoderCap(int maxFrameWidth, int maxFrameHeight, int maxBitRate,
+            File profiles) {
+        this(maxFrameWidth, maxFrameHeight, maxBitRate, profiles.getAbsolutePath(),
+                profiles.lastModified(), profiles.length());
+    }
+
+    private VideoEncoderCap(int maxFrameWidth, int maxFrameHeight, int maxBitRate,
+            String path, long modified, long length) {
+        this.maxFrameWidth = maxFrameWidth;
+        this.maxFrameHeight = maxFrameHeight;
+        this.maxBitRate = maxBitRate;
+        this.path = path;
+        this.modified = modified;
+        this.length = length;
+    }
+
+    private boolean isFrom(File profiles) {
+        return path.equals(profiles.getAbsolutePath()) && modified == profiles.lastModified()
+                && length == profiles.length();
+    }
+
+    /**
+     * @return the h264 encoder capabilities of this device, parsed from
+     *         {@link #MEDIA_PROFILES} only if it changed since last time.
+     */
+    static VideoEncoderCap get(Context context) throws Exception {
+        return get(MEDIA_PROFILES, new File(context.getCacheDir(), CACHE_FILE));
+    }
+
+    /**
+     * @return the h264 encoder capabilities in {@code profiles}, parsed
+     *         only if it changed since they were kept in {@code cache}.
+     */
+    static VideoEncoderCap get(File profiles, File cache) throws Exception {
+        synchronized (VideoEncoderCap.class) {
+            if (sCached != null && sCached.isFrom(profiles))
+                return sCached;
+        }
+
+        VideoEncoderCap cap = readCache(cache);
+        if (cap != null && cap.isFrom(profiles)) {
+            Log.d(LOGTAG, "Using cached encoder caps");
+        }
+        else {
+            cap = parse(profiles);
+            writeCache(cache, cap);
+        }
+        synchronized (VideoEncoderCap.class) {
+            sCached = cap;
+        }
+        return cap;
+    }
+
+    /**
+     * Forgets the capabilities kept in memory, as a new process would.
+     */
+    static synchronized void clearMemoryCache() {
+        sCached = null;
+    }
+
+    static VideoEncoderCap parse(final File profiles) throws Exception {
+        RootElement root = new RootElement("MediaSettings");
+        Element encoder = root.requireChild("VideoEncoderCap");
+        final ArrayList<VideoEncoderCap> encoders = new ArrayList<VideoEncoderCap>();
+        encoder.setElementListener(new ElementListener() {
+            @Override
+            public void end() {
+            }
+
+            @Override
+            public void start(Attributes attributes) {
+                if (!TextUtils.equals(attributes.getValue("name"), "h264"))
+                    return;
+                encoders.add(new VideoEncoderCap(
+                        Integer.valueOf(attributes.getValue("maxFrameWidth")),
+                        Integer.valueOf(attributes.getValue("maxFrameHeight")),
+                        Integer.valueOf(attributes.getValue("maxBitRate")),
+                        profiles));
+                // the rest of the file is of no interest
+                throw new StopParsingException();
+            }
+        });
+        FileInputStream in = new FileInputStream(profiles);
+        try {
+            // mapped and parsed in place, the parser works out the encoding
+            Parsers.parse(in.getChannel(), root.getContentHandler());
+        }
+        finally {
+            in.close();
+        }
+        if (encoders.size() != 1)
+            throw new Exception("derp");
+        return encoders.get(0);
+    }
+
+    // returns null if there is no usable cache
+    private static VideoEncoderCap readCache(File cache) {
+        if (!cache.exists())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(cache));
+            try {
+                if (in.readInt() != CACHE_VERSION)
+                    return null;
+                String path = in.readUTF();
+                long modified = in.readLong();
+                long length = in.readLong();
+                return new VideoEncoderCap(in.readInt(), in.readInt(), in.readInt(),
+                        path, modified, length);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            Log.w(LOGTAG, "Ignoring unreadable cache", e);
+            return null;
+        }
+    }
+
+    private static void writeCache(File cache, VideoEncoderCap cap) {
+        // written aside and renamed, so a reader never sees half a cache
+        File temp = new File(cache.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+            try {
+                out.writeInt(CACHE_VERSION);
+                out.writeUTF(cap.path);
+                out.writeLong(cap.modified);
+                out.writeLong(cap.length);
+                out.writeInt(cap.maxFrameWidth);
+                out.writeInt(cap.maxFrameHeight);
+                out.writeInt(cap.maxBitRate);
+            }
+            finally {
+                out.close();
+            }
+            if (!temp.renameTo(cache))
+                throw new IOException("Can't rename " + temp);
+        }
+        catch (IOException e) {
+            Log.w(LOGTAG, "Can't write cache", e);
+            temp.delete();
+        }
+    }
+}
@@ -17,75 +17,90 @@
 package safesax;
 
 /**
- * Contains element children.
+ * Contains element children, in an open addressing hash table that grows
+ * with the number of children. Names are interned, so when the parser
+ * interns them too a lookup normally costs one hash and an identity compare.
  */
 class Children {
 
-  Child[] children = new Child[16];
+  /** Grow once the table is this full, in eighths. */
+  private static final int MAX_LOAD = 5;
+
+  Child[] children = new Child[8];
+  int size;
 
   /**
    * Looks up a child by name and creates a new one if necessary.
    */
   Element getOrCreate(Element parent, String uri, String localName) {
-    int hash = uri.hashCode() * 31 + localName.hashCode();
-    int index = hash & 15;
-
-    Child current = children[index];
-    if (current == null) {
-      // We have no children in this bucket yet.
-      current = new Child(parent, uri, localName, parent.depth + 1, hash);
-      children[index] = current;
-      return current;
-    } else {
-      // Search this bucket.
-      Child previous;
-      do {
-        if (current.hash == hash
-            && current.uri.compareTo(uri) == 0
-            && current.localName.compareTo(localName) == 0) {
-          // We already have a child with that name.
-          return current;
-        }
-
-        previous = current;
-        current = current.next;
-      } while (current != null);
+    Element existing = get(uri, localName);
+    if (existing != null) {
+      return existing;
+    }
 
-      // Add a new child to the bucket.
-      current = new Child(parent, uri, localName, parent.depth + 1, hash);
-      previous.next = current;
-      return current;
+    parent.checkMutable();
+    if ((size + 1) * 8 > children.length * MAX_LOAD) {
+      resize();
     }
+    Child child = new Child(parent, uri.intern(), localName.intern(),
+        parent.depth + 1, hash(uri, localName));
+    insert(children, child);
+    size++;
+    return child;
   }
 
   /**
    * Looks up a child by name.
    */
   Element get(String uri, String localName) {
-    int hash = uri.hashCode() * 31 + localName.hashCode();
-    int index = hash & 15;
+    Child[] children = this.children;
+    int mask = children.length - 1;
+    int hash = hash(uri, localName);
+    for (int index = hash & mask; ; index = (index + 1) & mask) {
+      Child current = children[index];
+      if (current == null) {
+        return null;
+      }
+      // Interned names from the parser match by identity.
+      if (current.localName == localName && current.uri == uri) {
+        return current;
+      }
+      if (current.hash == hash
+          && current.localName.equals(localName)
+          && current.uri.equals(uri)) {
+        return current;
+      }
+    }
+  }
 
-    Child current = children[index];
-    if (current == null) {
-      return null;
-    } else {
-      do {
-        if (current.hash == hash
-            && current.uri.compareTo(uri) == 0
-            && current.localName.compareTo(localName) == 0) {
-          return current;
-        }
-        current = current.next;
-      } while (current != null);
+  private void resize() {
+    Child[] bigger = new Child[children.length * 2];
+    for (Child child : children) {
+      if (child != null) {
+        insert(bigger, child);
+      }
+    }
+    children = bigger;
+  }
 
-      return null;
+  private static void insert(Child[] children, Child child) {
+    int mask = children.length - 1;
+    int index = child.hash & mask;
+    while (children[index] != null) {
+      index = (index + 1) & mask;
     }
+    children[index] = child;
+  }
+
+  static int hash(String uri, String localName) {
+    int hash = uri.hashCode() * 31 + localName.hashCode();
+    // Spread the high bits into the few used by the table index.
+    return hash ^ (hash >>> 16);
   }
 
   static class Child extends Element {
 
     final int hash;
-    Child next;
 
     Child(Element parent, String uri, String localName, int depth,
         int hash) {
@@ -33,20 +33,25 @@ public class Element {
   final String localName;
   final int depth;
   final Element parent;
+  final RootElement root;
+  /** Index of this element in its schema, keys per-parse state. */
+  final int id;
   Children children;
 
   ArrayList<Element> requiredChilden;
-  boolean visited;
-  
+
   StartElementListener startElementListener;
   EndElementListener endElementListener;
   EndTextElementListener endTextElementListener;
+  EndTextSequenceListener endTextSequenceListener;
 
   Element(Element parent, String uri, String localName, int depth) {
     this.parent = parent;
     this.uri = uri;
     this.localName = localName;
     this.depth = depth;
+    this.root = parent == null ? (RootElement) this : parent.root;
+    this.id = root.elementCount++;
   }
 
   /**
@@ -61,12 +66,13 @@ public class Element {
    * Gets the child element with the given name.
    */
   public Element getChild(String uri, String localName) {
-    if (endTextElementListener != null) {
+    if (hasTextListener()) {
       throw new IllegalStateException("This element already has an end"
           + " text element listener. It cannot have children.");
     }
 
     if (children == null) {
+      checkMutable();
       children = new Children();
     }
 
@@ -92,10 +98,12 @@ public class Element {
     Element child = getChild(uri, localName);
 
     if (requiredChilden == null) {
+      checkMutable();
       requiredChilden = new ArrayList<Element>();
       requiredChilden.add(child);
     } else {
       if (!requiredChilden.contains(child)) {
+        checkMutable();
         requiredChilden.add(child);
       }
     }
@@ -128,6 +136,7 @@ public class Element {
       throw new IllegalStateException(
           "Start element listener has already been set.");
     }
+    checkMutable();
     this.startElementListener = startElementListener;
   }
 
@@ -139,6 +148,7 @@ public class Element {
       throw new IllegalStateException(
           "End element listener has already been set.");
     }
+    checkMutable();
     this.endElementListener = endElementListener;
   }
 
@@ -147,7 +157,27 @@ public class Element {
    */
   public void setEndTextElementListener(
       EndTextElementListener endTextElementListener) {
-    if (this.endTextElementListener != null) {
+    checkTextListener();
+    this.endTextElementListener = endTextElementListener;
+  }
+
+  /**
+   * Sets a listener for the end of this text element which gets the body as
+   * a {@code CharSequence}. Saves creating a {@code String} for every body
+   * when the listener only needs to look at it.
+   */
+  public void setEndTextSequenceListener(
+      EndTextSequenceListener endTextSequenceListener) {
+    checkTextListener();
+    this.endTextSequenceListener = endTextSequenceListener;
+  }
+
+  boolean hasTextListener() {
+    return endTextElementListener != null || endTextSequenceListener != null;
+  }
+
+  private void checkTextListener() {
+    if (hasTextListener()) {
       throw new IllegalStateException(
           "End text element listener has already been set.");
     }
@@ -156,8 +186,7 @@ public class Element {
       throw new IllegalStateException("This element already has children."
           + " It cannot have an end text element listener.");
     }
-
-    this.endTextElementListener = endTextElementListener;
+    checkMutable();
   }
 
   @Override
@@ -170,13 +199,23 @@ public class Element {
   }
 
   /**
-   * Clears flags on required children.
+   * Throws if a parser has started using the schema this element belongs to.
+   */
+  void checkMutable() {
+    if (root.compiled) {
+      throw new IllegalStateException("The schema is in use by a parser and"
+          + " can no longer be changed.");
+    }
+  }
+
+  /**
+   * Clears the visited flags of required children in the given parse state.
    */
-  void resetRequiredChildren() {
+  void resetRequiredChildren(boolean[] visited) {
     ArrayList<Element> requiredChildren = this.requiredChilden;
     if (requiredChildren != null) {
       for (int i = requiredChildren.size() - 1; i >= 0; i--) {
-        requiredChildren.get(i).visited = false;
+        visited[requiredChildren.get(i).id] = false;
       }
     }
   }
@@ -184,12 +223,13 @@ public class Element {
   /**
    * Throws an exception if a required child was not present.
    */
-  void checkRequiredChildren(Locator locator) throws SAXParseException {
+  void checkRequiredChildren(Locator locator, boolean[] visited)
+      throws SAXParseException {
     ArrayList<Element> requiredChildren = this.requiredChilden;
     if (requiredChildren != null) {
       for (int i = requiredChildren.size() - 1; i >= 0; i--) {
         Element child = requiredChildren.get(i);
-        if (!child.visited) {
+        if (!visited[child.id]) {
           throw new BadXmlException(
               "Element named " + this + " is missing required"
                   + " child element named "
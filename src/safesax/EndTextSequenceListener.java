@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2007 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package safesax;
+
+/**
+ * Listens for the end of text elements, without turning the body into a
+ * {@code String}.
+ */
+public interface EndTextSequenceListener {
+
+  /**
+   * Invoked at the end of a text element with the body of the element.
+   *
+   * @param body of the element, a view of the parser's text buffer which
+   *             is only valid until this method returns
+   */
+  void end(CharSequence body);
+}
@@ -20,31 +20,237 @@ import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
 
 /**
- * Parsing utility methods.
+ * Parsing utility methods, with a SAX and a pull parser backend. Parsers are
+ * kept per thread and reused across calls. A listener can end any of these
+ * parses early by throwing {@link StopParsingException}.
  */
 public class Parsers {
 
+  private static final SAXParserFactory saxFactory
+      = SAXParserFactory.newInstance();
+  private static XmlPullParserFactory pullFactory;
+
+  /** Parsers are reused, but not thread safe. */
+  private static final ThreadLocal<XMLReader> saxReaders
+      = new ThreadLocal<XMLReader>();
+  private static final ThreadLocal<XmlPullParser> pullParsers
+      = new ThreadLocal<XmlPullParser>();
+
+  private static final ContentHandler NO_HANDLER = new DefaultHandler();
+
   /**
    * Parses XML from the given reader with namespace support enabled.
    */
   public static void parse(Reader in, ContentHandler contentHandler)
       throws SAXException, IOException {
+    parse(new InputSource(in), contentHandler);
+  }
+
+  /**
+   * Parses XML from the given byte stream with namespace support enabled.
+   * The encoding is detected by the parser from the byte order mark and the
+   * XML declaration, so the caller needn't decode the document first.
+   */
+  public static void parse(InputStream in, ContentHandler contentHandler)
+      throws SAXException, IOException {
+    parse(new InputSource(in), contentHandler);
+  }
+
+  /**
+   * Parses XML from the remaining bytes of the given buffer with namespace
+   * support enabled. The bytes are read in place, not copied. The buffer's
+   * position is left alone.
+   */
+  public static void parse(ByteBuffer buffer, ContentHandler contentHandler)
+      throws SAXException, IOException {
+    parse(new ByteBufferInputStream(buffer.duplicate()), contentHandler);
+  }
+
+  /**
+   * Memory maps the whole file behind the given channel and parses it with
+   * namespace support enabled. The document is never copied onto the heap.
+   */
+  public static void parse(FileChannel channel, ContentHandler contentHandler)
+      throws SAXException, IOException {
+    parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+        contentHandler);
+  }
+
+  /**
+   * Parses XML from the given reader with a pull parser instead of SAX. The
+   * handler sees the same events either way, so this works with any {@link
+   * RootElement}. Which backend is faster depends on the platform.
+   */
+  public static void pullParse(Reader in, ContentHandler contentHandler)
+      throws SAXException, IOException {
+    XmlPullParser parser = pullParser();
+    try {
+      parser.setInput(in);
+    } catch (XmlPullParserException e) {
+      throw new SAXException(e);
+    }
+    pullParse(parser, contentHandler);
+  }
+
+  /**
+   * Parses XML from the given byte stream with a pull parser instead of SAX.
+   *
+   * @param encoding of the stream, or null to detect it from the byte order
+   *                 mark and the XML declaration
+   * @see #pullParse(Reader, ContentHandler)
+   */
+  public static void pullParse(InputStream in, String encoding,
+      ContentHandler contentHandler) throws SAXException, IOException {
+    XmlPullParser parser = pullParser();
+    try {
+      parser.setInput(in, encoding);
+    } catch (XmlPullParserException e) {
+      throw new SAXException(e);
+    }
+    pullParse(parser, contentHandler);
+  }
+
+  private static void pullParse(XmlPullParser parser,
+      ContentHandler contentHandler) throws SAXException, IOException {
+    try {
+      new PullParserDriver(parser).parse(contentHandler);
+    } catch (StopParsingException e) {
+      // Done early.
+    } finally {
+      try {
+        // Don't keep the input alive in the cached parser.
+        parser.setInput(null);
+      } catch (XmlPullParserException e) {
+        // Ignore.
+      }
+    }
+  }
+
+  private static void parse(InputSource source, ContentHandler contentHandler)
+      throws SAXException, IOException {
+    XMLReader reader = saxReader();
     try {
-      XMLReader reader
-          = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
-      reader.setFeature("http://xml.org/sax/features/namespaces", true);
       reader.setContentHandler(contentHandler);
-      reader.parse(new InputSource(in));
+      reader.parse(source);
+    } catch (StopParsingException e) {
+      // Done early.
+    } catch (SAXException e) {
+      // Some parsers wrap exceptions thrown by the handler.
+      if (!(e.getException() instanceof StopParsingException)) {
+        throw e;
+      }
+    } finally {
+      // Don't keep the schema alive in the cached reader.
+      reader.setContentHandler(NO_HANDLER);
+    }
+  }
+
+  /**
+   * Gets this thread's SAX reader, creating it on first use. Looking up the
+   * factory and building a parser cost more than parsing a small document.
+   */
+  private static XMLReader saxReader() throws SAXException {
+    XMLReader reader = saxReaders.get();
+    if (reader != null) {
+      return reader;
+    }
+    try {
+      synchronized (saxFactory) {
+        reader = saxFactory.newSAXParser().getXMLReader();
+      }
     } catch (ParserConfigurationException e) {
       throw new RuntimeException(e);
     }
+    reader.setFeature("http://xml.org/sax/features/namespaces", true);
+    try {
+      // Lets Children match names by identity.
+      reader.setFeature("http://xml.org/sax/features/string-interning",
+          true);
+    } catch (SAXException e) {
+      // Not supported by this parser, names are compared by value.
+    }
+    saxReaders.set(reader);
+    return reader;
+  }
+
+  /**
+   * Gets this thread's namespace aware pull parser, creating it on first
+   * use.
+   */
+  private static XmlPullParser pullParser() throws SAXException {
+    XmlPullParser parser = pullParsers.get();
+    if (parser != null) {
+      return parser;
+    }
+    try {
+      synchronized (Parsers.class) {
+        if (pullFactory == null) {
+          pullFactory = XmlPullParserFactory.newInstance();
+          pullFactory.setNamespaceAware(true);
+        }
+        parser = pullFactory.newPullParser();
+      }
+    } catch (XmlPullParserException e) {
+      throw new SAXException(e);
+    }
+    pullParsers.set(parser);
+    return parser;
+  }
+
+  /**
+   * Reads a buffer from its position to its limit.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      length = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, length);
+      return length;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
   }
 }
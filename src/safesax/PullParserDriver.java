@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2007 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package safesax;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+/**
+ * Feeds the events of a namespace aware {@link XmlPullParser} to a SAX
+ * {@code ContentHandler}, so {@link RootElement} listeners work unchanged
+ * on top of a pull parser. Attributes and the locator are live views of the
+ * parser, nothing is copied.
+ */
+class PullParserDriver implements Attributes, Locator {
+
+  private final XmlPullParser parser;
+
+  PullParserDriver(XmlPullParser parser) {
+    this.parser = parser;
+  }
+
+  /**
+   * Parses the parser's input to the end.
+   */
+  void parse(ContentHandler handler) throws SAXException, IOException {
+    XmlPullParser parser = this.parser;
+    int[] holder = new int[2];
+    try {
+      handler.setDocumentLocator(this);
+      handler.startDocument();
+      for (int type = parser.getEventType(); type != XmlPullParser.END_DOCUMENT;
+          type = parser.next()) {
+        switch (type) {
+          case XmlPullParser.START_TAG:
+            handler.startElement(parser.getNamespace(), parser.getName(),
+                qName(parser.getPrefix(), parser.getName()), this);
+            break;
+          case XmlPullParser.TEXT:
+            char[] text = parser.getTextCharacters(holder);
+            handler.characters(text, holder[0], holder[1]);
+            break;
+          case XmlPullParser.END_TAG:
+            handler.endElement(parser.getNamespace(), parser.getName(),
+                qName(parser.getPrefix(), parser.getName()));
+            break;
+        }
+      }
+      handler.endDocument();
+    } catch (XmlPullParserException e) {
+      SAXParseException wrapped = new SAXParseException(e.getMessage(), this);
+      wrapped.initCause(e);
+      throw wrapped;
+    }
+  }
+
+  private static String qName(String prefix, String name) {
+    return prefix == null ? name : prefix + ":" + name;
+  }
+
+  // Attributes of the current start tag.
+
+  public int getLength() {
+    return parser.getAttributeCount();
+  }
+
+  public String getURI(int index) {
+    return parser.getAttributeNamespace(index);
+  }
+
+  public String getLocalName(int index) {
+    return parser.getAttributeName(index);
+  }
+
+  public String getQName(int index) {
+    return qName(parser.getAttributePrefix(index),
+        parser.getAttributeName(index));
+  }
+
+  public String getType(int index) {
+    return index < 0 || index >= getLength() ? null : "CDATA";
+  }
+
+  public String getValue(int index) {
+    return index < 0 || index >= getLength()
+        ? null : parser.getAttributeValue(index);
+  }
+
+  public int getIndex(String uri, String localName) {
+    for (int i = getLength() - 1; i >= 0; i--) {
+      if (localName.equals(parser.getAttributeName(i))
+          && uri.equals(parser.getAttributeNamespace(i))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public int getIndex(String qName) {
+    for (int i = getLength() - 1; i >= 0; i--) {
+      if (qName.equals(getQName(i))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public String getType(String uri, String localName) {
+    return getType(getIndex(uri, localName));
+  }
+
+  public String getType(String qName) {
+    return getType(getIndex(qName));
+  }
+
+  public String getValue(String uri, String localName) {
+    return getValue(getIndex(uri, localName));
+  }
+
+  public String getValue(String qName) {
+    return getValue(getIndex(qName));
+  }
+
+  // Position of the current event.
+
+  public String getPublicId() {
+    return null;
+  }
+
+  public String getSystemId() {
+    return null;
+  }
+
+  public int getLineNumber() {
+    return parser.getLineNumber();
+  }
+
+  public int getColumnNumber() {
+    return parser.getColumnNumber();
+  }
+}
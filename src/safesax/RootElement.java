@@ -23,8 +23,13 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 /**
- * The root XML element. The entry point for this API. Not safe for concurrent
- * use.
+ * The root XML element. The entry point for this API.
+ *
+ * <p>The root and its descendants form a schema, which is compiled, i.e.
+ * can no longer be changed, once a document is parsed with it. All state of a
+ * parse lives in the content handler, so after building the schema on one
+ * thread any number of threads may parse with it at the same time, each with
+ * its own handler from {@link #newContentHandler()}.
  *
  * <p>For example, passing this XML:
  *
@@ -65,8 +70,17 @@ import org.xml.sax.helpers.DefaultHandler;
  */
 public class RootElement extends Element {
 
+  /** Number of elements in the schema, each has its own id. */
+  int elementCount;
+
+  /** Set once a parser uses the schema, after which it can't change. */
+  volatile boolean compiled;
+
   final Handler handler = new Handler();
 
+  /** Largest text buffer a handler keeps for the next body, in chars. */
+  private static final int MAX_RETAINED_BODY = 64 * 1024;
+
   /** Proxy the locator so the user can retrieve it before parsing starts. */
   final Locator locator = new Locator() {
 
@@ -113,15 +127,27 @@ public class RootElement extends Element {
   }
 
   /**
-   * Gets the SAX {@code ContentHandler}. Pass this to your SAX parser.
+   * Gets the SAX {@code ContentHandler}. Pass this to your SAX parser. Always
+   * returns the same handler, so it can only be used by one parse at a time.
+   *
+   * @see #newContentHandler()
    */
   public ContentHandler getContentHandler() {
     return this.handler;
   }
 
+  /**
+   * Creates a SAX {@code ContentHandler} with its own parse state. Handlers
+   * created this way can be used by parses running concurrently. The
+   * locator returned by {@link #getLocator()} does not follow them.
+   */
+  public ContentHandler newContentHandler() {
+    return new Handler();
+  }
+
   /**
    * Gets the SAX locator which can be used to find the current position
-   * within the XML.
+   * within the XML of the handler returned by {@link #getContentHandler()}.
    */
   public Locator getLocator() {
     return locator;
@@ -132,7 +158,23 @@ public class RootElement extends Element {
     Locator locator;
     int depth = -1;
     Element current = null;
-    StringBuilder bodyBuilder = null;
+    /** Collects the body of the current text element, reused. */
+    StringBuilder body = new StringBuilder();
+    boolean inBody;
+    /** Whether each element of the schema was seen, indexed by id. */
+    boolean[] visited;
+
+    @Override
+    public void startDocument() {
+      compiled = true;
+      if (visited == null || visited.length != elementCount) {
+        visited = new boolean[elementCount];
+      }
+      // A handler may be reused after a failed parse.
+      depth = -1;
+      current = null;
+      inBody = false;
+    }
 
     @Override
     public void setDocumentLocator(Locator locator) {
@@ -151,7 +193,7 @@ public class RootElement extends Element {
       }
 
       // Prohibit mixed text and elements.
-      if (bodyBuilder != null) {
+      if (inBody) {
         throw new BadXmlException("Encountered mixed content"
             + " within text element named " + current + ".",
             locator);
@@ -191,19 +233,25 @@ public class RootElement extends Element {
         e.startElementListener.start(attributes);
       }
 
-      if (e.endTextElementListener != null) {
-        this.bodyBuilder = new StringBuilder();
+      if (e.hasTextListener()) {
+        if (body.capacity() > MAX_RETAINED_BODY) {
+          // Don't hold on to the buffer of one huge body.
+          body = new StringBuilder();
+        } else {
+          body.setLength(0);
+        }
+        inBody = true;
       }
 
-      e.resetRequiredChildren();
-      e.visited = true;
+      e.resetRequiredChildren(visited);
+      visited[e.id] = true;
     }
 
     @Override
     public void characters(char[] buffer, int start, int length)
         throws SAXException {
-      if (bodyBuilder != null) {
-        bodyBuilder.append(buffer, start, length);
+      if (inBody) {
+        body.append(buffer, start, length);
       }
     }
 
@@ -214,7 +262,7 @@ public class RootElement extends Element {
 
       // If we've ended the current element...
       if (depth == current.depth) {
-        current.checkRequiredChildren(locator);
+        current.checkRequiredChildren(locator, visited);
 
         // Invoke end element listener.
         if (current.endElementListener != null) {
@@ -222,12 +270,15 @@ public class RootElement extends Element {
         }
 
         // Invoke end text element listener.
-        if (bodyBuilder != null) {
-          String body = bodyBuilder.toString();
-          bodyBuilder = null;
-
-          // We can assume that this listener is present.
-          current.endTextElementListener.end(body);
+        if (inBody) {
+          inBody = false;
+
+          // We can assume that one of these listeners is present.
+          if (current.endTextElementListener != null) {
+            current.endTextElementListener.end(body.toString());
+          } else {
+            current.endTextSequenceListener.end(body);
+          }
         }
 
         // Pop element off the stack.
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2007 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package safesax;
+
+/**
+ * Thrown by a listener to end the parse early, e.g. once it has found what
+ * it was looking for. The {@link Parsers} methods return normally when a
+ * parse is stopped this way; callers driving a parser themselves have to
+ * catch it. Required children are not checked for the unfinished elements.
+ */
+public class StopParsingException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public StopParsingException() {
+    super("Parsing stopped by listener");
+  }
+
+  /** Thrown for control flow only, the stack trace is never needed. */
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
@@ -0,0 +1 @@
+include $(call all-makefiles-under,$(call my-dir))
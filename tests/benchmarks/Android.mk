@@ -0,0 +1,21 @@
+LOCAL_PATH:= $(call my-dir)
+
+# JMH benchmarks of the recording pipeline on the host fakes, and of the
+# safesax parser the app reads the media profiles with. Run e.g. with
+#   java -cp $ANDROID_HOST_OUT/framework/ScreencastBenchmarks.jar \
+#       org.openjdk.jmh.Main RecorderBenchmark -prof gc
+# gc.alloc.rate.norm is then the bytes allocated per frame.
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_STATIC_JAVA_LIBRARIES := screencast-host jmh-core
+
+LOCAL_ANNOTATION_PROCESSORS := jmh-generator-annprocess
+LOCAL_ANNOTATION_PROCESSOR_CLASSES := org.openjdk.jmh.generators.BenchmarkProcessor
+
+LOCAL_MODULE := ScreencastBenchmarks
+
+include $(BUILD_HOST_JAVA_LIBRARY)
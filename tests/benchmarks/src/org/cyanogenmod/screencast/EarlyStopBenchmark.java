@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.concurrent.TimeUnit;
+
+import safesax.ElementListener;
+import safesax.Parsers;
+import safesax.RootElement;
+import safesax.StopParsingException;
+
+/**
+ * Reading the h264 encoder caps out of media_profiles.xml with a listener
+ * that stops the parse once it has them, against one that lets the parse
+ * run to the end of the file. Devices ship the caps after the camcorder
+ * profiles of every camera, so there the stop only saves the tail of the
+ * file, while with the caps first it saves nearly all of it. The two camera
+ * file is the size devices ship, the larger ones show how either scales
+ * with the size of the file. {@link VideoEncoderCap#parse} is measured too,
+ * which builds its schema on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EarlyStopBenchmark {
+    @Param({ "2", "16", "128" })
+    public int cameras;
+
+    // where the caps are in the file
+    @Param({ "last", "first" })
+    public String caps;
+
+    private File file;
+    private ContentHandler stopHandler;
+    private ContentHandler fullHandler;
+    private int maxBitRate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String xml = MediaProfiles.generate(cameras, 1920, 1080, 20000000);
+        if (caps.equals("first")) {
+            int start = xml.indexOf("    <VideoEncoderCap name=\"h264\"");
+            int end = xml.indexOf('\n', start) + 1;
+            String cap = xml.substring(start, end);
+            xml = xml.substring(0, start) + xml.substring(end);
+            int root = xml.indexOf("<MediaSettings>\n") + "<MediaSettings>\n".length();
+            xml = xml.substring(0, root) + cap + xml.substring(root);
+        }
+        file = File.createTempFile("media_profiles", ".xml");
+        MediaProfiles.write(file, xml);
+        stopHandler = newHandler(true);
+        fullHandler = newHandler(false);
+    }
+
+    private ContentHandler newHandler(final boolean stop) {
+        RootElement root = new RootElement("MediaSettings");
+        root.requireChild("VideoEncoderCap").setElementListener(new ElementListener() {
+            @Override
+            public void end() {
+            }
+
+            @Override
+            public void start(Attributes attributes) {
+                if (!"h264".equals(attributes.getValue("name")))
+                    return;
+                maxBitRate = Integer.parseInt(attributes.getValue("maxBitRate"));
+                if (stop)
+                    throw new StopParsingException();
+            }
+        });
+        return root.newContentHandler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    private int parse(ContentHandler handler) throws Exception {
+        maxBitRate = 0;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            Parsers.parse(in.getChannel(), handler);
+        }
+        finally {
+            in.close();
+        }
+        return maxBitRate;
+    }
+
+    @Benchmark
+    public int stopAtTheCaps() throws Exception {
+        return parse(stopHandler);
+    }
+
+    @Benchmark
+    public int parseEverything() throws Exception {
+        return parse(fullHandler);
+    }
+
+    @Benchmark
+    public int videoEncoderCap() throws Exception {
+        return VideoEncoderCap.parse(file).maxBitRate;
+    }
+}
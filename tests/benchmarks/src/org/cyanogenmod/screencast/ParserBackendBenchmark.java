@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import safesax.Element;
+import safesax.Parsers;
+import safesax.RootElement;
+import safesax.StartElementListener;
+
+/**
+ * A full parse of media_profiles.xml with the SAX and the pull backend of
+ * {@link Parsers}, both reusing their parser, and with a SAX parser looked
+ * up and built for every document as Parsers used to. The two camera file
+ * is the size devices ship, where the setup weighs most; the 128 camera
+ * one shows the backends' parsing speed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBackendBenchmark {
+    @Param({ "2", "128" })
+    public int cameras;
+
+    private byte[] document;
+    private ContentHandler handler;
+    private int videoProfiles;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        document = MediaProfiles.generate(cameras, 1920, 1080, 20000000).getBytes("UTF-8");
+
+        // walks every camcorder profile
+        RootElement root = new RootElement("MediaSettings");
+        Element video = root.getChild("CamcorderProfiles").getChild("EncoderProfile").getChild("Video");
+        video.setStartElementListener(new StartElementListener() {
+            @Override
+            public void start(Attributes attributes) {
+                videoProfiles++;
+            }
+        });
+        handler = root.newContentHandler();
+    }
+
+    @Benchmark
+    public int sax() throws Exception {
+        videoProfiles = 0;
+        Parsers.parse(new ByteArrayInputStream(document), handler);
+        return videoProfiles;
+    }
+
+    @Benchmark
+    public int pull() throws Exception {
+        videoProfiles = 0;
+        Parsers.pullParse(new ByteArrayInputStream(document), null, handler);
+        return videoProfiles;
+    }
+
+    @Benchmark
+    public int saxNewParser() throws Exception {
+        videoProfiles = 0;
+        XMLReader reader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+        reader.setFeature("http://xml.org/sax/features/namespaces", true);
+        reader.setFeature("http://xml.org/sax/features/string-interning", true);
+        reader.setContentHandler(handler);
+        reader.parse(new InputSource(new ByteArrayInputStream(document)));
+        return videoProfiles;
+    }
+}
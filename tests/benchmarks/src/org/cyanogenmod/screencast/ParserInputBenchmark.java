@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import safesax.Element;
+import safesax.Parsers;
+import safesax.RootElement;
+import safesax.StartElementListener;
+
+/**
+ * A full parse of a multi megabyte media_profiles.xml through each input
+ * path of {@link Parsers}: the old one reading the file into a byte[],
+ * decoding that into a String and parsing it through a StringReader, a
+ * byte stream, a direct buffer and a mapped file. The score is the parse
+ * time, {@code -prof gc} gives the bytes allocated per parse. The heap
+ * allocated before the parser sees the first element, i.e. the copies of
+ * the document kept through the whole parse, is {@code heldBytes} divided
+ * by {@code parses}, JMH sums both over all parses measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserInputBenchmark {
+    @Param({ "1", "8" })
+    public int megabytes;
+
+    @Param({ "string", "stream", "buffer", "mapped" })
+    public String input;
+
+    private File file;
+    private ContentHandler handler;
+    private long videoBitRates;
+    // allocated by this thread when it got to the root element
+    private long rootBytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long heldBytes;
+        public long parses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            heldBytes = 0;
+            parses = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int cameraSize = MediaProfiles.generate(1, 1920, 1080, 20000000).length()
+                - MediaProfiles.generate(0, 1920, 1080, 20000000).length();
+        file = File.createTempFile("media_profiles", ".xml");
+        MediaProfiles.write(file, MediaProfiles.generate(megabytes * 1024 * 1024 / cameraSize,
+                1920, 1080, 20000000));
+
+        // walks every camcorder profile
+        RootElement root = new RootElement("MediaSettings");
+        root.setStartElementListener(new StartElementListener() {
+            @Override
+            public void start(Attributes attributes) {
+                rootBytes = allocatedBytes();
+            }
+        });
+        Element video = root.getChild("CamcorderProfiles").getChild("EncoderProfile").getChild("Video");
+        video.setStartElementListener(new StartElementListener() {
+            @Override
+            public void start(Attributes attributes) {
+                videoBitRates += Integer.parseInt(attributes.getValue("bitRate"));
+            }
+        });
+        handler = root.newContentHandler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void parse() throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            if (input.equals("string")) {
+                byte[] bytes = new byte[(int) file.length()];
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    if (n < 0)
+                        throw new IOException("Truncated " + file);
+                    read += n;
+                }
+                Parsers.parse(new StringReader(new String(bytes, "UTF-8")), handler);
+            }
+            else if (input.equals("stream")) {
+                Parsers.parse(in, handler);
+            }
+            else if (input.equals("buffer")) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect((int) file.length());
+                while (buffer.hasRemaining() && in.getChannel().read(buffer) >= 0) {
+                }
+                buffer.flip();
+                Parsers.parse(buffer, handler);
+            }
+            else if (input.equals("mapped")) {
+                Parsers.parse(in.getChannel(), handler);
+            }
+            else {
+                throw new IllegalArgumentException(input);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public long parseAll(Counters counters) throws Exception {
+        videoBitRates = 0;
+        long startBytes = allocatedBytes();
+        parse();
+        counters.heldBytes += rootBytes - startBytes;
+        counters.parses++;
+        return videoBitRates;
+    }
+}
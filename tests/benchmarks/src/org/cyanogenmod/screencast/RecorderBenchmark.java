@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames through the recording pipeline, from the encoder callback to the
+ * muxer, at the sizes the encoder puts out for common panels. Throughput is
+ * frames per second the encoder thread gets through, sample time gives the
+ * latency percentiles of a frame, and {@code -prof gc} the bytes allocated
+ * per frame. Those include a BufferInfo per frame where the encoder hands
+ * out a new one like MediaCodec does, none are the pipeline's own when it
+ * reuses one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecorderBenchmark {
+    private static final int GOP = 30;
+    // encoder output at about 6 bits per pixel per second at 60fps, and
+    // keyframes four times the size of the frames in between
+    private static final int BITS_PER_PIXEL_SECOND = 6;
+    private static final int FRAME_RATE = 60;
+    private static final int KEYFRAME_SCALE = 4;
+
+    @Param({ "720p", "1080p", "1440p" })
+    public String resolution;
+
+    @Param({ "true", "false" })
+    public boolean newBufferInfo;
+
+    private FakePipeline pipeline;
+    private int frameSize;
+    private int frame;
+
+    private static int pixels(String resolution) {
+        if (resolution.equals("720p"))
+            return 1280 * 720;
+        if (resolution.equals("1080p"))
+            return 1920 * 1080;
+        if (resolution.equals("1440p"))
+            return 2560 * 1440;
+        throw new IllegalArgumentException(resolution);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        frameSize = pixels(resolution) * BITS_PER_PIXEL_SECOND / FRAME_RATE / 8;
+        // frames put out on the benchmark thread, as the encoder thread
+        pipeline = new FakePipeline(frameSize * KEYFRAME_SCALE, null, null, null);
+        pipeline.video.setReuseBufferInfo(!newBufferInfo);
+        pipeline.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        if (!pipeline.finish(10000))
+            throw new IllegalStateException("pipeline didn't finish");
+        if (pipeline.muxer.getErrorCount() != 0)
+            throw new IllegalStateException(pipeline.muxer.getErrorCount() + " samples out of order");
+    }
+
+    @Benchmark
+    public void frame() throws InterruptedException {
+        boolean keyframe = frame++ % GOP == 0;
+        pipeline.emitFrame(keyframe ? frameSize * KEYFRAME_SCALE : frameSize, keyframe);
+    }
+}
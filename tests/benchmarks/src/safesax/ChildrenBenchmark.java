@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2007 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package safesax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Child lookups in wide schemas, an element with {@code size} children, and
+ * deep ones, {@code size} elements nested in each other, against the fixed
+ * 16 bucket chained table {@link Children} used to be. Names are looked up
+ * as the parser hands them over, interned, or as equal copies for parsers
+ * that don't intern.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChildrenBenchmark {
+
+  private static final int LOOKUPS = 1024;
+
+  @Param({"wide", "deep"})
+  public String shape;
+
+  @Param({"4", "16", "64", "256"})
+  public int size;
+
+  @Param({"interned", "copied"})
+  public String names;
+
+  /** The table and name of each lookup, cycled through. */
+  private Children[] tables;
+  private LegacyChildren[] legacyTables;
+  private String[] localNames;
+
+  @Setup
+  public void setUp() {
+    boolean wide = shape.equals("wide");
+    boolean copied = names.equals("copied");
+    RootElement root = new RootElement("root");
+
+    tables = new Children[size];
+    legacyTables = new LegacyChildren[size];
+    localNames = new String[size];
+    Element parent = root;
+    LegacyChildren legacy = new LegacyChildren();
+    for (int i = 0; i < size; i++) {
+      String name = "element" + i;
+      Element child = parent.getChild(name);
+      if (!wide) {
+        legacy = new LegacyChildren();
+      }
+      legacy.add("", name);
+      tables[i] = parent.children;
+      legacyTables[i] = legacy;
+      localNames[i] = copied ? new String(name) : name.intern();
+      if (!wide) {
+        parent = child;
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int lookup() {
+    int found = 0;
+    for (int i = 0; i < LOOKUPS; i++) {
+      int index = i % size;
+      if (tables[index].get("", localNames[index]) != null) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int legacyLookup() {
+    int found = 0;
+    for (int i = 0; i < LOOKUPS; i++) {
+      int index = i % size;
+      if (legacyTables[index].get("", localNames[index]) != null) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  /** The lookup of the old 16 bucket table, less the elements. */
+  static class LegacyChildren {
+
+    final Node[] nodes = new Node[16];
+
+    static class Node {
+      final int hash;
+      final String uri;
+      final String localName;
+      Node next;
+
+      Node(String uri, String localName, int hash) {
+        this.uri = uri;
+        this.localName = localName;
+        this.hash = hash;
+      }
+    }
+
+    void add(String uri, String localName) {
+      int hash = uri.hashCode() * 31 + localName.hashCode();
+      Node node = new Node(uri, localName, hash);
+      node.next = nodes[hash & 15];
+      nodes[hash & 15] = node;
+    }
+
+    Node get(String uri, String localName) {
+      int hash = uri.hashCode() * 31 + localName.hashCode();
+      for (Node current = nodes[hash & 15]; current != null;
+          current = current.next) {
+        if (current.hash == hash
+            && current.uri.compareTo(uri) == 0
+            && current.localName.compareTo(localName) == 0) {
+          return current;
+        }
+      }
+      return null;
+    }
+  }
+}
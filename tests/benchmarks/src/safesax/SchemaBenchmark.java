@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2007 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package safesax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Documents per second parsed by several threads at once, sharing one
+ * schema with a handler each, against building the schema for every parse
+ * as a schema holding its own parse state required. Change the number of
+ * threads with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SchemaBenchmark {
+
+  private static final int ENTRIES = 100;
+
+  /** Sum of what the listeners saw, so the parse can't be left out. */
+  private static final ThreadLocal<int[]> seen = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  private String document;
+  private RootElement shared;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    ContentHandler handler;
+
+    @Setup
+    public void setUp(SchemaBenchmark benchmark) {
+      handler = benchmark.shared.newContentHandler();
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    StringBuilder xml = new StringBuilder("<feed>");
+    for (int i = 0; i < ENTRIES; i++) {
+      xml.append("<entry id='").append(i).append("'><title>Entry ").append(i)
+          .append("</title><link href='http://example.com/").append(i)
+          .append("'/><summary>").append("Lorem ipsum dolor sit amet. ")
+          .append("</summary></entry>");
+    }
+    document = xml.append("</feed>").toString();
+    shared = newSchema();
+  }
+
+  private static RootElement newSchema() {
+    RootElement root = new RootElement("feed");
+    Element entry = root.getChild("entry");
+    entry.setStartElementListener(new StartElementListener() {
+      public void start(Attributes attributes) {
+        seen.get()[0] += attributes.getValue("", "id").length();
+      }
+    });
+    entry.requireChild("title").setEndTextSequenceListener(
+        new EndTextSequenceListener() {
+          public void end(CharSequence body) {
+            seen.get()[0] += body.length();
+          }
+        });
+    entry.getChild("link").setStartElementListener(new StartElementListener() {
+      public void start(Attributes attributes) {
+        seen.get()[0] += attributes.getLength();
+      }
+    });
+    return root;
+  }
+
+  private int parse(ContentHandler handler) throws Exception {
+    seen.get()[0] = 0;
+    Parsers.parse(new StringReader(document), handler);
+    return seen.get()[0];
+  }
+
+  @Benchmark
+  public int sharedSchema(ThreadState state) throws Exception {
+    return parse(state.handler);
+  }
+
+  @Benchmark
+  public int schemaPerParse() throws Exception {
+    return parse(newSchema().getContentHandler());
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2007 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package safesax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation of collecting the bodies of thousands of text elements, run
+ * with {@code -prof gc} and compared by gc.alloc.rate.norm. The bodies go
+ * to an {@link EndTextElementListener} as a String each, or to an {@link
+ * EndTextSequenceListener} as a view of the handler's reused buffer. {@code
+ * newBuilders} is a handler doing what safesax used to, a StringBuilder and
+ * a String for every body, to compare against. All three include what the
+ * parser itself allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextBenchmark {
+
+  private static final int ENTRIES = 2000;
+
+  @Param({"16", "256"})
+  public int bodyLength;
+
+  private byte[] document;
+  private ContentHandler stringHandler;
+  private ContentHandler sequenceHandler;
+  private ContentHandler newBuildersHandler;
+  private int chars;
+
+  @Setup
+  public void setUp() throws Exception {
+    StringBuilder body = new StringBuilder();
+    while (body.length() < bodyLength) {
+      body.append((char) ('a' + body.length() % 26));
+    }
+    StringBuilder xml = new StringBuilder("<feed>");
+    for (int i = 0; i < ENTRIES; i++) {
+      xml.append("<entry><title>").append(body).append("</title><id>")
+          .append(body).append("</id></entry>");
+    }
+    document = xml.append("</feed>").toString().getBytes("UTF-8");
+
+    RootElement strings = new RootElement("feed");
+    EndTextElementListener stringListener = new EndTextElementListener() {
+      public void end(String body) {
+        chars += body.length();
+      }
+    };
+    Element entry = strings.getChild("entry");
+    entry.getChild("title").setEndTextElementListener(stringListener);
+    entry.getChild("id").setEndTextElementListener(stringListener);
+    stringHandler = strings.newContentHandler();
+
+    RootElement sequences = new RootElement("feed");
+    EndTextSequenceListener sequenceListener = new EndTextSequenceListener() {
+      public void end(CharSequence body) {
+        chars += body.length();
+      }
+    };
+    entry = sequences.getChild("entry");
+    entry.getChild("title").setEndTextSequenceListener(sequenceListener);
+    entry.getChild("id").setEndTextSequenceListener(sequenceListener);
+    sequenceHandler = sequences.newContentHandler();
+
+    newBuildersHandler = new NewBuildersHandler();
+  }
+
+  private int parse(ContentHandler handler) throws Exception {
+    chars = 0;
+    Parsers.parse(new ByteArrayInputStream(document), handler);
+    return chars;
+  }
+
+  @Benchmark
+  public int endTextElement() throws Exception {
+    return parse(stringHandler);
+  }
+
+  @Benchmark
+  public int endTextSequence() throws Exception {
+    return parse(sequenceHandler);
+  }
+
+  @Benchmark
+  public int newBuilders() throws Exception {
+    return parse(newBuildersHandler);
+  }
+
+  /** Collects the bodies of title and id like the handler used to. */
+  class NewBuildersHandler extends DefaultHandler {
+
+    StringBuilder body;
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes attributes) {
+      if (localName.equals("title") || localName.equals("id")) {
+        body = new StringBuilder();
+      }
+    }
+
+    @Override
+    public void characters(char[] buffer, int start, int length) {
+      if (body != null) {
+        body.append(buffer, start, length);
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      if (body != null) {
+        chars += body.toString().length();
+        body = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+LOCAL_PATH:= $(call my-dir)
+
+# The recording pipeline on a plain JVM: the classes that don't need a
+# device, safesax, host stand-ins for the few framework classes they use,
+# and fakes of the encoders, the muxer and the microphone.
+include $(CLEAR_VARS)
+
+screencast_dir := ../../src/org/cyanogenmod/screencast
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, shims) \
+    $(call all-java-files-under, fakes) \
+    $(call all-java-files-under, ../../src/safesax) \
+    $(addprefix $(screencast_dir)/, \
+        AudioSource.java \
+        BitrateController.java \
+        EncodedSample.java \
+        Encoder.java \
+        FragmentedMp4Muxer.java \
+        Muxer.java \
+        MuxerWriter.java \
+        PipelineStats.java \
+        Recorder.java \
+        ResolutionSelector.java \
+        SamplePool.java \
+        SampleQueue.java \
+        SampleSink.java \
+        StreamServer.java \
+        VideoEncoderCap.java)
+
+LOCAL_STATIC_JAVA_LIBRARIES := kxml2-2.3.0
+
+LOCAL_MODULE := screencast-host
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
+# Run with
+#   java -cp $ANDROID_HOST_OUT/framework/ScreencastHostTests.jar \
+#       org.junit.runner.JUnitCore org.cyanogenmod.screencast.RecorderTest
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_STATIC_JAVA_LIBRARIES := screencast-host junit hamcrest-host
+
+LOCAL_MODULE := ScreencastHostTests
+
+include $(BUILD_HOST_JAVA_LIBRARY)
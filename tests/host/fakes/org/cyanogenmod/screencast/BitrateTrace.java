@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Video frame sizes recorded at a known bitrate, replayed through a
+ * {@link BitrateController} as if the encoder produced them. The encoder is
+ * taken to scale its output linearly with the bitrate it is set to, and to
+ * apply a new bitrate from the next frame on.
+ */
+class BitrateTrace {
+    final int recordedBitrate;
+    private long[] ptsUs = new long[64];
+    private int[] sizes = new int[64];
+    private int length;
+
+    /**
+     * Result of a replay.
+     */
+    static class Replay {
+        long totalBytes;
+        long durationUs;
+        int minBitrate = Integer.MAX_VALUE;
+        int maxBitrate;
+        int updates;
+
+        /**
+         * @return the average output over the whole trace, bits per second
+         */
+        double averageBitrate() {
+            return totalBytes * 8e6 / durationUs;
+        }
+    }
+
+    /**
+     * @param recordedBitrate what the encoder was set to when the sizes were
+     *        recorded
+     */
+    BitrateTrace(int recordedBitrate) {
+        this.recordedBitrate = recordedBitrate;
+    }
+
+    /**
+     * Reads a trace with a frame per line, its timestamp in microseconds and
+     * its size in bytes separated by white space, e.g. the pts and size
+     * columns of a packet dump. Blank lines and lines starting with # are
+     * skipped.
+     */
+    static BitrateTrace read(Reader in, int recordedBitrate) throws IOException {
+        BitrateTrace trace = new BitrateTrace(recordedBitrate);
+        BufferedReader lines = new BufferedReader(in);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2)
+                throw new IOException("Expected pts and size: " + line);
+            trace.add(Long.parseLong(fields[0]), Integer.parseInt(fields[1]));
+        }
+        return trace;
+    }
+
+    /**
+     * Appends {@code seconds} of frames at {@code fps}, each of the size the
+     * content takes at {@code bitsPerSecond}, every {@code gop}th frame a
+     * keyframe {@code keyframeScale} times the size of the others.
+     */
+    BitrateTrace addScene(int seconds, int fps, int bitsPerSecond, int gop, int keyframeScale) {
+        long startUs = length == 0 ? 0 : ptsUs[length - 1] + 1000000L / fps;
+        int frames = seconds * fps;
+        // a GOP's worth of bits spread over its frames by their weight
+        long frameBytes = (long) bitsPerSecond / 8 * gop / fps / (gop - 1 + keyframeScale);
+        for (int i = 0; i < frames; i++) {
+            long size = i % gop == 0 ? frameBytes * keyframeScale : frameBytes;
+            add(startUs + i * 1000000L / fps, (int) Math.max(1, size));
+        }
+        return this;
+    }
+
+    void add(long pts, int size) {
+        if (length == sizes.length) {
+            ptsUs = Arrays.copyOf(ptsUs, length * 2);
+            sizes = Arrays.copyOf(sizes, length * 2);
+        }
+        ptsUs[length] = pts;
+        sizes[length] = size;
+        length++;
+    }
+
+    int getFrameCount() {
+        return length;
+    }
+
+    /**
+     * Plays the trace through {@code controller}, the encoder starting at the
+     * controller's initial bitrate.
+     */
+    Replay replay(BitrateController controller) {
+        Replay replay = new Replay();
+        int bitrate = controller.getBitrate();
+        for (int i = 0; i < length; i++) {
+            replay.minBitrate = Math.min(replay.minBitrate, bitrate);
+            replay.maxBitrate = Math.max(replay.maxBitrate, bitrate);
+            int size = (int) Math.max(1, (long) sizes[i] * bitrate / recordedBitrate);
+            replay.totalBytes += size;
+            int next = controller.onFrame(size, ptsUs[i]);
+            if (next > 0) {
+                bitrate = next;
+                replay.updates++;
+            }
+        }
+        if (length > 1)
+            replay.durationUs = ptsUs[length - 1] - ptsUs[0] + (ptsUs[length - 1] - ptsUs[0]) / (length - 1);
+        return replay;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AudioSource} putting out silence at the pace of a microphone, i.e.
+ * a read blocks until the audio it returns would have been captured.
+ */
+class FakeAudioSource implements AudioSource {
+    private static final int BYTES_PER_SECOND = SAMPLE_RATE * CHANNEL_COUNT * 2;
+
+    private final boolean initialized;
+    private long startNanos;
+    private long bytesRead;
+    private volatile boolean started;
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    /**
+     * @param initialized false to act like a microphone that can't be opened
+     */
+    FakeAudioSource(boolean initialized) {
+        this.initialized = initialized;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    @Override
+    public void start() {
+        startNanos = System.nanoTime();
+        started = true;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        if (!started)
+            return -1;
+        size = Math.min(size, buffer.remaining());
+        for (int i = 0; i < size; i++)
+            buffer.put(buffer.position() + i, (byte) 0);
+        bytesRead += size;
+        long dueNanos = startNanos + bytesRead * 1000000000L / BYTES_PER_SECOND;
+        long waitNanos;
+        while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+            }
+            catch (InterruptedException e) {
+                return -1;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+    }
+
+    @Override
+    public void release() {
+        released.countDown();
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Waits for the source to be released, which the audio thread does
+     * after the end of stream, i.e. maybe after the recording finished.
+     *
+     * @return false if it wasn't released in time
+     */
+    boolean awaitReleased(long timeoutMillis) throws InterruptedException {
+        return released.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
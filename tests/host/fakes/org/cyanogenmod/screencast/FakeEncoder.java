@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * In-memory {@link Encoder}. As a video encoder it puts out the frames
+ * {@link #emitFrame} is given, as if they came from its input surface. As an
+ * audio encoder it turns every input buffer queued into an output buffer of
+ * a fixed size. Every output payload starts with its sequence number.
+ */
+class FakeEncoder implements Encoder {
+    private static final int OUTPUT_BUFFERS = 4;
+    private static final int INPUT_BUFFERS = 4;
+    // 1024 samples of 16 bit mono, one AAC frame
+    private static final int AUDIO_INPUT_SIZE = 2048;
+
+    private final MediaFormat format;
+    private final Executor executor;
+    private final ByteBuffer[] inputs;
+    private final ByteBuffer[] outputs = new ByteBuffer[OUTPUT_BUFFERS];
+    private final boolean[] outputBusy = new boolean[OUTPUT_BUFFERS];
+    // size of every audio output buffer, 0 for a video encoder
+    private final int audioOutputSize;
+    private final MediaCodec.BufferInfo sharedInfo = new MediaCodec.BufferInfo();
+    private Callback callback;
+    private boolean reuseBufferInfo;
+    // guarded by this
+    private boolean holdStart;
+    private int sequence;
+    private volatile boolean started;
+    private volatile boolean released;
+    private volatile int videoBitrate;
+    private volatile int syncFrameRequests;
+
+    private FakeEncoder(MediaFormat format, int maxOutputSize, int audioOutputSize,
+            Executor executor) {
+        this.format = format;
+        this.audioOutputSize = audioOutputSize;
+        this.executor = executor;
+        for (int i = 0; i < OUTPUT_BUFFERS; i++) {
+            outputs[i] = ByteBuffer.allocateDirect(maxOutputSize);
+            // something other than zeros, the sequence number goes in front
+            for (int j = 0; j < maxOutputSize; j++)
+                outputs[i].put(j, (byte) j);
+        }
+        inputs = new ByteBuffer[audioOutputSize > 0 ? INPUT_BUFFERS : 0];
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = ByteBuffer.allocateDirect(AUDIO_INPUT_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize largest frame {@link #emitFrame} is given
+     * @param executor runs the callbacks, all on the same thread. If null,
+     *        they run on the thread causing them.
+     */
+    static FakeEncoder video(int width, int height, int maxFrameSize, Executor executor) {
+        return new FakeEncoder(videoFormat(width, height), maxFrameSize, 0, executor);
+    }
+
+    /**
+     * @param outputSize size of every encoded audio frame
+     * @param executor runs the callbacks, must be the one of the video encoder
+     */
+    static FakeEncoder audio(int outputSize, Executor executor) {
+        return new FakeEncoder(audioFormat(), outputSize, outputSize, executor);
+    }
+
+    /**
+     * @return the output format of an AVC encoder, with its parameter sets.
+     */
+    static MediaFormat videoFormat(int width, int height) {
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", width, height);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[] {
+                0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8 }));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(new byte[] {
+                0, 0, 0, 1, 0x68, (byte) 0xce, 0x06, (byte) 0xe2 }));
+        return format;
+    }
+
+    /**
+     * @return the output format of an AAC encoder fed by {@link AudioSource}.
+     */
+    static MediaFormat audioFormat() {
+        MediaFormat format = MediaFormat.createAudioFormat("audio/mp4a-latm",
+                AudioSource.SAMPLE_RATE, AudioSource.CHANNEL_COUNT);
+        // AAC LC, 44.1kHz mono
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[] { 0x12, 0x08 }));
+        return format;
+    }
+
+    /**
+     * Hands out the same BufferInfo with every output buffer, where
+     * MediaCodec allocates a new one each time. Tells the allocations of the
+     * pipeline apart from those of the framework.
+     */
+    void setReuseBufferInfo(boolean reuse) {
+        reuseBufferInfo = reuse;
+    }
+
+    /**
+     * Puts out a video frame of {@code size} bytes, stamped with the current
+     * time like frames from a surface. Blocks while every output buffer is
+     * still held by the receiver.
+     *
+     * @param flags e.g. {@link MediaCodec#BUFFER_FLAG_KEY_FRAME}
+     */
+    void emitFrame(int size, int flags) throws InterruptedException {
+        output(size, System.nanoTime() / 1000L, flags);
+    }
+
+    /**
+     * @return the bitrate last set, 0 if none.
+     */
+    int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    int getSyncFrameRequests() {
+        return syncFrameRequests;
+    }
+
+    /**
+     * @return whether every output buffer was handed back.
+     */
+    synchronized boolean isIdle() {
+        for (boolean busy : outputBusy) {
+            if (busy)
+                return false;
+        }
+        return true;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    private void output(int size, long presentationTimeUs, int flags) throws InterruptedException {
+        int index = acquireOutput();
+        ByteBuffer buffer = outputs[index];
+        if (size >= 4)
+            buffer.putInt(0, sequence);
+        sequence++;
+        buffer.limit(size);
+        buffer.position(0);
+        final MediaCodec.BufferInfo info = reuseBufferInfo ? sharedInfo : new MediaCodec.BufferInfo();
+        info.set(0, size, presentationTimeUs, flags);
+        if (executor == null) {
+            callback.onOutputBufferAvailable(this, index, info);
+            return;
+        }
+        final int outputIndex = index;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onOutputBufferAvailable(FakeEncoder.this, outputIndex, info);
+            }
+        });
+    }
+
+    private synchronized int acquireOutput() throws InterruptedException {
+        while (true) {
+            for (int i = 0; i < OUTPUT_BUFFERS; i++) {
+                if (!outputBusy[i]) {
+                    outputBusy[i] = true;
+                    return i;
+                }
+            }
+            wait();
+        }
+    }
+
+    private void inputAvailable(final int index) {
+        if (executor == null) {
+            callback.onInputBufferAvailable(this, index);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onInputBufferAvailable(FakeEncoder.this, index);
+            }
+        });
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            started = true;
+            if (holdStart)
+                return;
+        }
+        announce();
+    }
+
+    /**
+     * Holds back the output format and the input buffers of the next
+     * {@link #start} until {@link #releaseStart}, as a slow codec would.
+     * For audio that keeps the recording from starting.
+     */
+    synchronized void holdStart() {
+        holdStart = true;
+    }
+
+    void releaseStart() {
+        synchronized (this) {
+            holdStart = false;
+            if (!started)
+                return;
+        }
+        announce();
+    }
+
+    private void announce() {
+        if (executor == null) {
+            callback.onOutputFormatChanged(this, format);
+        }
+        else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onOutputFormatChanged(FakeEncoder.this, format);
+                }
+            });
+        }
+        for (int i = 0; i < inputs.length; i++)
+            inputAvailable(i);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = inputs[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (!started)
+            throw new IllegalStateException("not started");
+        boolean end = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        try {
+            output(end ? 0 : audioOutputSize, presentationTimeUs, flags);
+        }
+        catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        if (!end)
+            inputAvailable(index);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return outputs[index];
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        if (!outputBusy[index])
+            throw new IllegalStateException("output buffer " + index + " isn't held");
+        outputBusy[index] = false;
+        notifyAll();
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        try {
+            output(0, System.nanoTime() / 1000L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+        catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        syncFrameRequests++;
+    }
+
+    @Override
+    public void setVideoBitrate(int bitsPerSecond) {
+        videoBitrate = bitsPerSecond;
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+    }
+
+    @Override
+    public void release() {
+        released = true;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * In-memory {@link Muxer} keeping per track totals rather than the samples,
+ * so it allocates nothing while writing. Reads every payload like a real
+ * muxer would, and checks the samples of each track come in order, as told
+ * by the sequence number {@link FakeEncoder} puts in front.
+ */
+class FakeMuxer implements Muxer {
+    private final ArrayList<MediaFormat> formats = new ArrayList<MediaFormat>();
+    private long[] samples;
+    private long[] bytes;
+    private long[] lastPtsUs;
+    private int[] lastSequence;
+    private int keyframes;
+    private int errors;
+    private long checksum;
+    private boolean started;
+    private boolean stopped;
+    private boolean released;
+    // samples written before every write fails, -1 for never
+    private long failAfter = -1;
+    private long written;
+    private boolean failStop;
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (started)
+            throw new IllegalStateException("already started");
+        formats.add(format);
+        return formats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        int tracks = formats.size();
+        samples = new long[tracks];
+        bytes = new long[tracks];
+        lastPtsUs = new long[tracks];
+        lastSequence = new int[tracks];
+        for (int i = 0; i < tracks; i++) {
+            lastPtsUs[i] = -1;
+            lastSequence[i] = -1;
+        }
+        started = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (!started || stopped)
+            throw new IllegalStateException("not started");
+        if (failAfter >= 0 && written >= failAfter)
+            throw new IllegalStateException("disk full");
+        int end = info.offset + info.size;
+        for (int i = info.offset; i + 8 <= end; i += 8)
+            checksum += buffer.getLong(i);
+        if (info.size >= 4) {
+            int sequence = buffer.getInt(info.offset);
+            if (sequence <= lastSequence[trackIndex])
+                errors++;
+            lastSequence[trackIndex] = sequence;
+        }
+        if (info.presentationTimeUs <= lastPtsUs[trackIndex])
+            errors++;
+        lastPtsUs[trackIndex] = info.presentationTimeUs;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 && trackIndex == 0)
+            keyframes++;
+        samples[trackIndex]++;
+        written++;
+        bytes[trackIndex] += info.size;
+    }
+
+    @Override
+    public void stop() {
+        if (!started)
+            throw new IllegalStateException("not started");
+        if (failStop)
+            throw new IllegalStateException("can't write the moov");
+        stopped = true;
+    }
+
+    /**
+     * Fails every write once {@code count} samples were written.
+     */
+    void failWritesAfter(long count) {
+        failAfter = count;
+    }
+
+    void failStop() {
+        failStop = true;
+    }
+
+    @Override
+    public void release() {
+        released = true;
+    }
+
+    int getTrackCount() {
+        return formats.size();
+    }
+
+    MediaFormat getFormat(int track) {
+        return formats.get(track);
+    }
+
+    long getSampleCount(int track) {
+        return samples[track];
+    }
+
+    long getBytes(int track) {
+        return bytes[track];
+    }
+
+    long getLastPtsUs(int track) {
+        return lastPtsUs[track];
+    }
+
+    /**
+     * @return keyframes on the first track, the video.
+     */
+    int getKeyframeCount() {
+        return keyframes;
+    }
+
+    /**
+     * @return samples out of order, in sequence or in time.
+     */
+    int getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * @return a sum over all payload written, keeps the reads from being
+     *         optimized away.
+     */
+    long getChecksum() {
+        return checksum;
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The recording pipeline as {@link RecordingDevice} sets it up, a
+ * {@link Recorder} muxing through a {@link MuxerWriter}, with fakes for the
+ * encoders, the muxer and the microphone.
+ */
+class FakePipeline {
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
+    // the cap RecordingDevice puts on samples waiting for the muxer
+    static final long SAMPLE_MEMORY_LIMIT = 16 * 1024 * 1024;
+    // an AAC frame of 1024 samples at 64kbit/s
+    static final int AUDIO_FRAME_SIZE = 186;
+
+    final FakeEncoder video;
+    final FakeEncoder audio;
+    final FakeAudioSource audioSource;
+    final FakeMuxer muxer = new FakeMuxer();
+    final Recorder recorder;
+    // counted down by the muxer once done, and by the recorder once it let
+    // go of the encoders
+    private final CountDownLatch finished = new CountDownLatch(2);
+    private volatile boolean complete;
+
+    /**
+     * @param maxFrameSize largest video frame put out
+     * @param audioSource null for no audio
+     * @param encoderThread runs all encoder callbacks. If null, they run on
+     *        the thread putting out the frames, which then must be the only
+     *        encoder, i.e. no audio.
+     * @param bitrateController adapts the video bitrate, may be null
+     */
+    FakePipeline(int maxFrameSize, FakeAudioSource audioSource, Executor encoderThread,
+            BitrateController bitrateController) {
+        video = FakeEncoder.video(WIDTH, HEIGHT, maxFrameSize, encoderThread);
+        audio = audioSource != null ? FakeEncoder.audio(AUDIO_FRAME_SIZE, encoderThread) : null;
+        this.audioSource = audioSource;
+        recorder = new Recorder(video, SAMPLE_MEMORY_LIMIT, audioSource != null,
+                bitrateController, false) {
+            @Override
+            protected SampleSink createSink() {
+                return new MuxerWriter(muxer, new MuxerWriter.OnFinishedListener() {
+                    @Override
+                    public void onFinished(boolean complete) {
+                        FakePipeline.this.complete = complete;
+                        finished.countDown();
+                    }
+                });
+            }
+
+            @Override
+            protected Encoder createAudioEncoder(MediaFormat format) {
+                return FakePipeline.this.audio;
+            }
+
+            @Override
+            protected AudioSource createAudioSource() {
+                return FakePipeline.this.audioSource;
+            }
+
+            @Override
+            protected void cleanup() {
+                super.cleanup();
+                video.stop();
+                video.release();
+                // nothing left for the muxer to finish
+                if (!isSinkStarted())
+                    finished.countDown();
+                finished.countDown();
+            }
+        };
+        video.setCallback(recorder);
+    }
+
+    /**
+     * Starts the video encoder, the recording starts with its output format.
+     */
+    void start() {
+        video.start();
+    }
+
+    /**
+     * Puts out a video frame.
+     */
+    void emitFrame(int size, boolean keyframe) throws InterruptedException {
+        video.emitFrame(size, keyframe ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    }
+
+    /**
+     * Ends the video, the recording ends once the last of it is muxed and
+     * the encoders are released.
+     *
+     * @return false if that didn't happen in time
+     */
+    boolean finish(long timeoutMillis) throws InterruptedException {
+        video.signalEndOfInputStream();
+        return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether the muxer wrote everything and stopped cleanly, once
+     *         {@link #finish} returned true
+     */
+    boolean isComplete() {
+        return complete;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * media_profiles.xml laid out like the ones devices ship: the camcorder
+ * profiles of every camera first, then the encoder and decoder caps.
+ */
+class MediaProfiles {
+    private static final String[] QUALITIES = {
+        "low", "high", "qcif", "cif", "480p", "720p", "1080p",
+        "timelapselow", "timelapsehigh", "timelapse480p", "timelapse720p", "timelapse1080p",
+    };
+    private static final int[][] SIZES = {
+        { 176, 144 }, { 1920, 1080 }, { 176, 144 }, { 352, 288 }, { 720, 480 },
+        { 1280, 720 }, { 1920, 1080 },
+    };
+
+    private MediaProfiles() {
+    }
+
+    /**
+     * @param cameras number of cameras with a full set of profiles, what
+     *        makes the file large
+     * @return the document, with an h264 encoder of the given caps
+     */
+    static String generate(int cameras, int maxFrameWidth, int maxFrameHeight, int maxBitRate) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        xml.append("<!-- Copyright (C) 2010 The Android Open Source Project -->\n");
+        xml.append("<MediaSettings>\n");
+        for (int camera = 0; camera < cameras; camera++) {
+            xml.append("    <CamcorderProfiles cameraId=\"").append(camera).append("\">\n");
+            for (int i = 0; i < QUALITIES.length; i++) {
+                int[] size = SIZES[i % SIZES.length];
+                xml.append(String.format(Locale.US,
+                        "        <EncoderProfile quality=\"%s\" fileFormat=\"mp4\" duration=\"30\">\n"
+                        + "            <Video codec=\"h264\" bitRate=\"%d\" width=\"%d\" height=\"%d\" frameRate=\"30\" />\n"
+                        + "            <!-- audio setting is ignored for time lapse -->\n"
+                        + "            <Audio codec=\"aac\" bitRate=\"96000\" sampleRate=\"48000\" channels=\"1\" />\n"
+                        + "        </EncoderProfile>\n",
+                        QUALITIES[i], size[0] * size[1] * 8, size[0], size[1]));
+            }
+            xml.append("        <ImageEncoding quality=\"95\" />\n");
+            xml.append("        <ImageEncoding quality=\"80\" />\n");
+            xml.append("        <ImageEncoding quality=\"70\" />\n");
+            xml.append("        <ImageDecoding memCap=\"20000000\" />\n");
+            xml.append("    </CamcorderProfiles>\n");
+        }
+        xml.append("    <EncoderOutputFileFormat format=\"3gp\" />\n");
+        xml.append("    <EncoderOutputFileFormat format=\"mp4\" />\n");
+        xml.append("    <VideoEncoderCap name=\"h263\" enabled=\"true\" minBitRate=\"64000\""
+                + " maxBitRate=\"2000000\" minFrameWidth=\"176\" maxFrameWidth=\"800\""
+                + " minFrameHeight=\"144\" maxFrameHeight=\"480\" minFrameRate=\"15\""
+                + " maxFrameRate=\"30\" />\n");
+        xml.append(String.format(Locale.US,
+                "    <VideoEncoderCap name=\"h264\" enabled=\"true\" minBitRate=\"64000\""
+                + " maxBitRate=\"%d\" minFrameWidth=\"176\" maxFrameWidth=\"%d\""
+                + " minFrameHeight=\"144\" maxFrameHeight=\"%d\" minFrameRate=\"15\""
+                + " maxFrameRate=\"30\" />\n", maxBitRate, maxFrameWidth, maxFrameHeight));
+        xml.append("    <VideoEncoderCap name=\"m4v\" enabled=\"true\" minBitRate=\"64000\""
+                + " maxBitRate=\"4000000\" minFrameWidth=\"176\" maxFrameWidth=\"1280\""
+                + " minFrameHeight=\"144\" maxFrameHeight=\"720\" minFrameRate=\"15\""
+                + " maxFrameRate=\"30\" />\n");
+        xml.append("    <AudioEncoderCap name=\"aac\" enabled=\"true\" minBitRate=\"5525\""
+                + " maxBitRate=\"288000\" minSampleRate=\"8000\" maxSampleRate=\"48000\""
+                + " minChannels=\"1\" maxChannels=\"6\" />\n");
+        xml.append("    <VideoDecoderCap name=\"wmv\" enabled=\"false\" />\n");
+        xml.append("    <AudioDecoderCap name=\"wma\" enabled=\"false\" />\n");
+        xml.append("    <VideoEditorCap maxInputFrameWidth=\"1920\" maxInputFrameHeight=\"1088\""
+                + " maxOutputFrameWidth=\"1920\" maxOutputFrameHeight=\"1088\""
+                + " maxPrefetchYUVFrames=\"10\" />\n");
+        xml.append("</MediaSettings>\n");
+        return xml.toString();
+    }
+
+    static void write(File file, String xml) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(xml.getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.media;
+
+/**
+ * Host stand-in for the framework class, only the buffer metadata.
+ */
+public final class MediaCodec {
+    public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+    public static final int BUFFER_FLAG_KEY_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    private MediaCodec() {
+    }
+
+    public final static class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+}
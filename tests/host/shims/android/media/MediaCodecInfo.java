@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.media;
+
+/**
+ * Host stand-in for the framework class, only the profile levels.
+ */
+public final class MediaCodecInfo {
+    private MediaCodecInfo() {
+    }
+
+    public static final class CodecProfileLevel {
+        public static final int AVCProfileBaseline = 0x01;
+        public static final int AVCProfileMain = 0x02;
+        public static final int AVCProfileHigh = 0x08;
+
+        public static final int AVCLevel31 = 0x200;
+        public static final int AVCLevel4 = 0x800;
+        public static final int AVCLevel41 = 0x1000;
+        public static final int AVCLevel42 = 0x2000;
+        public static final int AVCLevel5 = 0x4000;
+        public static final int AVCLevel51 = 0x8000;
+
+        public static final int AACObjectHE = 5;
+
+        public int profile;
+        public int level;
+    }
+}
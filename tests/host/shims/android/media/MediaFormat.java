@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Host stand-in for the framework class. Like the framework's, a missing
+ * integer key throws a NullPointerException.
+ */
+public final class MediaFormat {
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_AAC_PROFILE = "aac-profile";
+
+    private final Map<String, Object> map = new HashMap<String, Object>();
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public static MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public final boolean containsKey(String name) {
+        return map.containsKey(name);
+    }
+
+    public final int getInteger(String name) {
+        return ((Integer) map.get(name)).intValue();
+    }
+
+    public final String getString(String name) {
+        return (String) map.get(name);
+    }
+
+    public final ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) map.get(name);
+    }
+
+    public final void setInteger(String name, int value) {
+        map.put(name, Integer.valueOf(value));
+    }
+
+    public final void setString(String name, String value) {
+        map.put(name, value);
+    }
+
+    public final void setByteBuffer(String name, ByteBuffer bytes) {
+        map.put(name, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return map.toString();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.text;
+
+/**
+ * Host stand-in for the framework class.
+ */
+public class TextUtils {
+    private TextUtils() {
+    }
+
+    public static boolean equals(CharSequence a, CharSequence b) {
+        if (a == b)
+            return true;
+        if (a == null || b == null || a.length() != b.length())
+            return false;
+        if (a instanceof String && b instanceof String)
+            return a.equals(b);
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
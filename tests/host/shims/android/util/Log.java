@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+/**
+ * Host stand-in for the framework class: messages of INFO and up go to
+ * stderr, nothing is loggable below that.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private static final String LEVELS = "??VDIWEA";
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return level >= INFO;
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg, null);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg, tr);
+    }
+
+    private static int println(int level, String tag, String msg, Throwable tr) {
+        if (!isLoggable(tag, level))
+            return 0;
+        System.err.println(LEVELS.charAt(level) + "/" + tag + ": " + msg);
+        if (tr != null)
+            tr.printStackTrace();
+        return msg.length();
+    }
+}
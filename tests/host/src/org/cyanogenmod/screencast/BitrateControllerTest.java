@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+/**
+ * Replays frame size traces of typical screen content through the
+ * controller. Traces are recorded at the most the encoder supports, which
+ * the content may not need.
+ */
+public class BitrateControllerTest {
+    private static final int MAX_BITRATE = 20000000;
+    private static final int BUDGET = 4000000;
+    private static final int FLOOR = 1000000;
+    private static final int FPS = 60;
+    private static final int GOP = 60;
+    private static final int KEYFRAME_SCALE = 4;
+    // how far off budget the average may end up once the controller had
+    // the time to pay back the start
+    private static final double TOLERANCE = 0.1;
+
+    private static BitrateTrace trace() {
+        return new BitrateTrace(MAX_BITRATE);
+    }
+
+    private static BitrateTrace.Replay replay(BitrateTrace trace) {
+        BitrateTrace.Replay replay = trace.replay(new BitrateController(BUDGET, FLOOR, MAX_BITRATE));
+        assertTrue("bitrate below the floor: " + replay.minBitrate, replay.minBitrate >= FLOOR);
+        assertTrue("bitrate above the max: " + replay.maxBitrate, replay.maxBitrate <= MAX_BITRATE);
+        return replay;
+    }
+
+    private static void assertOnBudget(BitrateTrace.Replay replay) {
+        double average = replay.averageBitrate();
+        assertEquals("average " + average, BUDGET, average, BUDGET * TOLERANCE);
+    }
+
+    @Test
+    public void staticUiStaysUnderBudget() {
+        // a few hundred kbps worth of blinking cursor
+        BitrateTrace.Replay replay = replay(trace().addScene(120, FPS, 500000, GOP, KEYFRAME_SCALE));
+
+        assertTrue(replay.averageBitrate() < BUDGET);
+        // nothing to save, so the quality isn't held back
+        assertEquals(MAX_BITRATE, replay.maxBitrate);
+    }
+
+    @Test
+    public void highMotionAveragesTheBudget() {
+        // games and video, some scenes harder to encode than others
+        BitrateTrace trace = trace();
+        for (int i = 0; i < 8; i++) {
+            trace.addScene(5, FPS, MAX_BITRATE, GOP, KEYFRAME_SCALE);
+            trace.addScene(5, FPS, MAX_BITRATE * 2, GOP, KEYFRAME_SCALE);
+            trace.addScene(5, FPS, MAX_BITRATE * 3 / 2, GOP, KEYFRAME_SCALE);
+        }
+        BitrateTrace.Replay replay = replay(trace);
+
+        assertOnBudget(replay);
+        // settles in each scene rather than updating the codec every second
+        assertTrue("updates: " + replay.updates, replay.updates < 60);
+    }
+
+    @Test
+    public void encoderOvershootAveragesTheBudget() {
+        // an encoder putting out half again what it's set to
+        BitrateTrace.Replay replay = replay(trace().addScene(120, FPS, MAX_BITRATE * 3 / 2, GOP, KEYFRAME_SCALE));
+
+        assertOnBudget(replay);
+    }
+
+    @Test
+    public void alternatingScenesAverageTheBudget() {
+        // reading, then scrolling, then reading again...
+        BitrateTrace trace = trace();
+        for (int i = 0; i < 6; i++) {
+            trace.addScene(10, FPS, 500000, GOP, KEYFRAME_SCALE);
+            trace.addScene(10, FPS, MAX_BITRATE, GOP, KEYFRAME_SCALE);
+        }
+        BitrateTrace.Replay replay = replay(trace);
+
+        assertTrue("average " + replay.averageBitrate(),
+                replay.averageBitrate() < BUDGET * (1 + TOLERANCE));
+    }
+
+    @Test
+    public void floorWinsOverTheBudget() {
+        // content that would need less than the floor to fit the budget
+        BitrateTrace.Replay replay = replay(trace().addScene(60, FPS, MAX_BITRATE * 8, GOP, KEYFRAME_SCALE));
+
+        assertEquals(FLOOR, replay.minBitrate);
+        assertTrue(replay.averageBitrate() > BUDGET);
+    }
+
+    @Test
+    public void readsRecordedTraces() throws Exception {
+        BitrateTrace trace = BitrateTrace.read(new StringReader(
+                "# pts size\n"
+                + "0 40000\n"
+                + "16666 10000\n"
+                + "\n"
+                + "33333 10000\n"), MAX_BITRATE);
+
+        assertEquals(3, trace.getFrameCount());
+        BitrateTrace.Replay replay = trace.replay(new BitrateController(MAX_BITRATE, FLOOR, MAX_BITRATE));
+        assertEquals(60000, replay.totalBytes);
+        assertEquals(0, replay.updates);
+    }
+}
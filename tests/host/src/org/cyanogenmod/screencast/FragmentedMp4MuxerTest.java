@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Cuts recordings off the way a killed process leaves them, and checks
+ * {@link FragmentedMp4Muxer#recover} leaves a well formed file behind.
+ */
+public class FragmentedMp4MuxerTest {
+    private static final long FLUSH_INTERVAL_US = 200000;
+    private static final long DURATION_US = 2000000;
+    private static final long FRAME_US = 1000000 / 30;
+    private static final long AUDIO_FRAME_US = 1024L * 1000000 / AudioSource.SAMPLE_RATE;
+    private static final int FRAME_SIZE = 4000;
+    private static final int GOP = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private static class Box {
+        final String type;
+        final int offset;
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        int end() {
+            return offset + size;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.newFile("recording.mp4");
+        record(file);
+    }
+
+    // two seconds of video and audio, interleaved like MuxerWriter does
+    private static void record(File file) throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file.getAbsolutePath(), FLUSH_INTERVAL_US);
+        int video = muxer.addTrack(FakeEncoder.videoFormat(FakePipeline.WIDTH, FakePipeline.HEIGHT));
+        int audio = muxer.addTrack(FakeEncoder.audioFormat());
+        muxer.start();
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_SIZE);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long videoUs = 0;
+        long audioUs = 0;
+        int frame = 0;
+        while (videoUs < DURATION_US || audioUs < DURATION_US) {
+            buffer.clear();
+            if (videoUs <= audioUs) {
+                boolean keyframe = frame++ % GOP == 0;
+                // one slice in Annex B, as the encoder puts it out
+                buffer.putInt(1).put((byte) (keyframe ? 0x65 : 0x41));
+                while (buffer.position() < FRAME_SIZE)
+                    buffer.put((byte) 0xaa);
+                buffer.flip();
+                info.set(0, buffer.limit(), videoUs,
+                        keyframe ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(video, buffer, info);
+                videoUs += FRAME_US;
+            }
+            else {
+                while (buffer.position() < FakePipeline.AUDIO_FRAME_SIZE)
+                    buffer.put((byte) 0x55);
+                buffer.flip();
+                info.set(0, buffer.limit(), audioUs, 0);
+                muxer.writeSampleData(audio, buffer, info);
+                audioUs += AUDIO_FRAME_US;
+            }
+        }
+        muxer.stop();
+        muxer.release();
+    }
+
+    private static ArrayList<Box> boxes(ByteBuffer data, int from, int to) {
+        ArrayList<Box> boxes = new ArrayList<Box>();
+        int pos = from;
+        while (pos < to) {
+            assertTrue("box header cut off at " + pos, pos + 8 <= to);
+            int size = data.getInt(pos);
+            assertTrue("box size " + size + " at " + pos, size >= 8 && pos + size <= to);
+            byte[] type = new byte[4];
+            for (int i = 0; i < 4; i++)
+                type[i] = data.get(pos + 4 + i);
+            boxes.add(new Box(new String(type), pos, size));
+            pos += size;
+        }
+        return boxes;
+    }
+
+    private static Box child(ByteBuffer data, Box parent, int header, String type) {
+        for (Box box : boxes(data, parent.offset + header, parent.end())) {
+            if (box.type.equals(type))
+                return box;
+        }
+        throw new AssertionError("no " + type + " in " + parent.type);
+    }
+
+    private static ArrayList<Box> children(ByteBuffer data, Box parent, String type) {
+        ArrayList<Box> found = new ArrayList<Box>();
+        for (Box box : boxes(data, parent.offset + 8, parent.end())) {
+            if (box.type.equals(type))
+                found.add(box);
+        }
+        return found;
+    }
+
+    /**
+     * Checks the file is a ftyp and a moov followed by complete moof/mdat
+     * pairs, numbered in order, each moof describing exactly the samples in
+     * its mdat.
+     *
+     * @return the top level boxes
+     */
+    private static ArrayList<Box> checkWellFormed(File file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        ArrayList<Box> boxes = boxes(data, 0, data.limit());
+        assertTrue(boxes.size() >= 2);
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        child(data, boxes.get(1), 8, "mvex");
+        assertEquals("moof without its mdat", 0, boxes.size() % 2);
+        for (int i = 2; i < boxes.size(); i += 2) {
+            Box moof = boxes.get(i);
+            Box mdat = boxes.get(i + 1);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+            Box mfhd = child(data, moof, 8, "mfhd");
+            assertEquals(i / 2, data.getInt(mfhd.offset + 12));
+            int sampleBytes = 0;
+            for (Box traf : children(data, moof, "traf")) {
+                Box trun = child(data, traf, 8, "trun");
+                int count = data.getInt(trun.offset + 12);
+                // offsets are from the start of the moof
+                int start = moof.offset + data.getInt(trun.offset + 16);
+                int size = 0;
+                for (int s = 0; s < count; s++)
+                    size += data.getInt(trun.offset + 20 + s * 12 + 4);
+                assertTrue("samples outside their mdat",
+                        start >= mdat.offset + 8 && start + size <= mdat.end());
+                sampleBytes += size;
+            }
+            assertEquals(mdat.size - 8, sampleBytes);
+        }
+        return boxes;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void writesWellFormedFragments() throws Exception {
+        ArrayList<Box> boxes = checkWellFormed(file);
+        // a fragment every flush interval, give or take one
+        int fragments = (boxes.size() - 2) / 2;
+        assertTrue(fragments + " fragments", Math.abs(fragments - DURATION_US / FLUSH_INTERVAL_US) <= 1);
+    }
+
+    @Test
+    public void leavesACompleteFileAlone() throws Exception {
+        long length = file.length();
+        assertEquals(0, FragmentedMp4Muxer.recover(file));
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void cutsOffAMoofTornInTheMiddle() throws Exception {
+        ArrayList<Box> boxes = checkWellFormed(file);
+        Box moof = boxes.get(boxes.size() - 2);
+        truncate(file, moof.offset + moof.size / 2);
+
+        assertEquals(moof.size / 2, FragmentedMp4Muxer.recover(file));
+        assertEquals(moof.offset, file.length());
+        assertEquals(boxes.size() - 2, checkWellFormed(file).size());
+    }
+
+    @Test
+    public void cutsOffAMoofWithoutItsMdat() throws Exception {
+        ArrayList<Box> boxes = checkWellFormed(file);
+        Box moof = boxes.get(boxes.size() - 2);
+        truncate(file, moof.end());
+
+        assertEquals(moof.size, FragmentedMp4Muxer.recover(file));
+        assertEquals(boxes.size() - 2, checkWellFormed(file).size());
+    }
+
+    @Test
+    public void cutsOffAnMdatTornInTheMiddle() throws Exception {
+        ArrayList<Box> boxes = checkWellFormed(file);
+        Box moof = boxes.get(boxes.size() - 2);
+        Box mdat = boxes.get(boxes.size() - 1);
+        truncate(file, mdat.offset + mdat.size / 2);
+
+        assertEquals(moof.size + mdat.size / 2, FragmentedMp4Muxer.recover(file));
+        assertEquals(moof.offset, file.length());
+        assertEquals(boxes.size() - 2, checkWellFormed(file).size());
+    }
+
+    @Test
+    public void cutsOffAnMdatHeader() throws Exception {
+        ArrayList<Box> boxes = checkWellFormed(file);
+        Box moof = boxes.get(boxes.size() - 4);
+        Box mdat = boxes.get(boxes.size() - 3);
+        // a fragment back, mid way through the mdat header
+        truncate(file, mdat.offset + 4);
+
+        assertEquals(moof.size + 4, FragmentedMp4Muxer.recover(file));
+        assertEquals(boxes.size() - 4, checkWellFormed(file).size());
+    }
+
+    @Test
+    public void givesUpWithoutAMoov() throws Exception {
+        ArrayList<Box> boxes = checkWellFormed(file);
+        Box moov = boxes.get(1);
+        truncate(file, moov.offset + moov.size / 2);
+
+        assertEquals(-1, FragmentedMp4Muxer.recover(file));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks the steady state of the recording pipeline allocates nothing, on
+ * the encoder thread nor on the muxer thread, once the sample pool has
+ * warmed up to its cap. Frames are put out on the calling thread so its
+ * allocations can be measured. The JVM may still allocate now and then on
+ * its own, e.g. linking a branch taken for the first time, so a few windows
+ * of frames are measured: anything the pipeline allocates per frame shows
+ * up in every one of them.
+ */
+public class RecorderAllocationTest {
+    private static final int FRAME_SIZE = 32 * 1024;
+    private static final int GOP = 30;
+    // enough for the pool to fill its size classes and the JIT to settle
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int FRAMES = 10000;
+    private static final int WINDOWS = 5;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private static Set<Thread> muxerThreads() {
+        Set<Thread> muxers = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Muxer") && thread.isAlive())
+                muxers.add(thread);
+        }
+        return muxers;
+    }
+
+    // the muxer thread the pipeline started
+    private static Thread startPipeline(FakePipeline pipeline) {
+        Set<Thread> before = muxerThreads();
+        pipeline.start();
+        Set<Thread> after = muxerThreads();
+        after.removeAll(before);
+        assertEquals(1, after.size());
+        return after.iterator().next();
+    }
+
+    private static void emitFrames(FakePipeline pipeline, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++)
+            pipeline.emitFrame(FRAME_SIZE - i % 7 * 1000, i % GOP == 0);
+    }
+
+    // takes the pool up to its cap once, as a long enough recording would,
+    // so it has every sample it will ever need and room to keep them
+    private static void fillPool(SamplePool pool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (pool.getBytesOutstanding() > 0) {
+            assertTrue("muxer didn't catch up", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        int count = (int) (FakePipeline.SAMPLE_MEMORY_LIMIT / SamplePool.capacityOf(FRAME_SIZE));
+        EncodedSample[] samples = new EncodedSample[count];
+        for (int i = 0; i < count; i++)
+            samples[i] = pool.obtain(FRAME_SIZE);
+        for (EncodedSample sample : samples)
+            sample.release();
+    }
+
+    // heap allocated by {@code count} new BufferInfos on this thread
+    private long bufferInfoBytes(int count) {
+        MediaCodec.BufferInfo[] infos = new MediaCodec.BufferInfo[count];
+        long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < count; i++)
+            infos[i] = new MediaCodec.BufferInfo();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+    }
+
+    /**
+     * @return bytes allocated by the calling thread and by the muxer thread
+     *         while {@link #FRAMES} frames were recorded, after the warm up,
+     *         in the first window that passes the check.
+     */
+    private long[] measure(boolean reuseBufferInfo, long maxCallerBytes) throws Exception {
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, null, null, null);
+        pipeline.video.setReuseBufferInfo(reuseBufferInfo);
+        Thread muxer = startPipeline(pipeline);
+        emitFrames(pipeline, WARMUP_FRAMES);
+        fillPool(pipeline.recorder.pool);
+
+        long caller = Thread.currentThread().getId();
+        long[] bytes = null;
+        int windows = 0;
+        while (windows < WINDOWS) {
+            long callerStart = threads.getThreadAllocatedBytes(caller);
+            long muxerStart = threads.getThreadAllocatedBytes(muxer.getId());
+            emitFrames(pipeline, FRAMES);
+            long callerBytes = threads.getThreadAllocatedBytes(caller) - callerStart;
+            long muxerBytes = threads.getThreadAllocatedBytes(muxer.getId()) - muxerStart;
+            windows++;
+            bytes = new long[] { callerBytes, muxerBytes };
+            if (callerBytes <= maxCallerBytes && muxerBytes == 0)
+                break;
+        }
+
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+        assertEquals(WARMUP_FRAMES + windows * FRAMES, pipeline.muxer.getSampleCount(0));
+        assertEquals(0, pipeline.muxer.getErrorCount());
+        return bytes;
+    }
+
+    @Test
+    public void steadyStateAllocatesNothing() throws Exception {
+        long[] bytes = measure(true, 0);
+        assertEquals("bytes allocated on the encoder thread", 0, bytes[0]);
+        assertEquals("bytes allocated on the muxer thread", 0, bytes[1]);
+    }
+
+    @Test
+    public void allocatesNothingButTheFrameworkBufferInfos() throws Exception {
+        // MediaCodec hands out a new BufferInfo with every output buffer,
+        // the pipeline copies it rather than keeping it or making more
+        long framework = bufferInfoBytes(FRAMES);
+        long[] bytes = measure(false, framework);
+        assertTrue("bytes allocated on the encoder thread " + bytes[0]
+                + ", of which BufferInfos " + framework, bytes[0] <= framework);
+        assertEquals("bytes allocated on the muxer thread", 0, bytes[1]);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.screencast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the recording pipeline against fakes on the encoder thread, the way
+ * the device runs it.
+ */
+public class RecorderTest {
+    private static final int FRAME_SIZE = 32 * 1024;
+    private static final int FRAME_RATE = 60;
+    private static final int GOP = 30;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private ExecutorService encoderThread;
+
+    @Before
+    public void setUp() {
+        encoderThread = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        encoderThread.shutdownNow();
+    }
+
+    // puts out frames at the frame rate, a keyframe every GOP
+    private static void emitFrames(FakePipeline pipeline, int count) throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long due = start + i * 1000000000L / FRAME_RATE;
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            pipeline.emitFrame(FRAME_SIZE - i % 7 * 1000, i % GOP == 0);
+        }
+    }
+
+    @Test
+    public void recordsVideoAndAudio() throws Exception {
+        FakeAudioSource source = new FakeAudioSource(true);
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, source, encoderThread, null);
+        pipeline.start();
+        emitFrames(pipeline, 2 * FRAME_RATE);
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        FakeMuxer muxer = pipeline.muxer;
+        assertEquals(2, muxer.getTrackCount());
+        assertTrue(muxer.isStopped());
+        assertTrue(muxer.isReleased());
+        assertEquals(0, muxer.getErrorCount());
+        assertEquals(2 * FRAME_RATE, muxer.getSampleCount(0));
+        assertEquals(2 * FRAME_RATE / GOP, muxer.getKeyframeCount());
+        // two seconds of audio, give or take the start up
+        long audioFrames = muxer.getSampleCount(1);
+        long expected = 2L * AudioSource.SAMPLE_RATE / 1024;
+        assertTrue("audio frames " + audioFrames, audioFrames > expected / 2 && audioFrames <= expected + 10);
+        assertEquals(audioFrames * FakePipeline.AUDIO_FRAME_SIZE, muxer.getBytes(1));
+
+        assertTrue(source.awaitReleased(TIMEOUT_MILLIS));
+        assertTrue(pipeline.video.isReleased());
+        assertTrue(pipeline.video.isIdle());
+        assertTrue(pipeline.audio.isIdle());
+        assertEquals(0, pipeline.recorder.pool.getBytesOutstanding());
+        assertTrue(pipeline.isComplete());
+    }
+
+    @Test
+    public void holdsFramesOfEncodersReusingTheirBufferInfo() throws Exception {
+        FakeAudioSource source = new FakeAudioSource(true);
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, source, encoderThread, null);
+        pipeline.video.setReuseBufferInfo(true);
+        pipeline.audio.setReuseBufferInfo(true);
+        pipeline.audio.holdStart();
+        pipeline.start();
+        // held until the audio format is known, while the info is reused.
+        // Fewer than the encoder has output buffers, or it would wait
+        emitFrames(pipeline, 3);
+        pipeline.audio.releaseStart();
+        emitFrames(pipeline, FRAME_RATE - 3);
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        assertEquals(0, pipeline.muxer.getErrorCount());
+        assertEquals(FRAME_RATE, pipeline.muxer.getSampleCount(0));
+    }
+
+    @Test
+    public void failedWriteLeavesTheRecordingIncomplete() throws Exception {
+        FakeAudioSource source = new FakeAudioSource(true);
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, source, encoderThread, null);
+        pipeline.muxer.failWritesAfter(20);
+        pipeline.start();
+        emitFrames(pipeline, FRAME_RATE);
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        assertFalse(pipeline.isComplete());
+        assertFalse(pipeline.muxer.isStopped());
+        assertTrue(pipeline.muxer.isReleased());
+        // everything after the failure went back to the pool
+        assertEquals(0, pipeline.recorder.pool.getBytesOutstanding());
+    }
+
+    @Test
+    public void failedStopLeavesTheRecordingIncomplete() throws Exception {
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, null, encoderThread, null);
+        pipeline.muxer.failStop();
+        pipeline.start();
+        emitFrames(pipeline, 10);
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        assertFalse(pipeline.isComplete());
+        assertEquals(10, pipeline.muxer.getSampleCount(0));
+        assertTrue(pipeline.muxer.isReleased());
+        assertEquals(0, pipeline.recorder.pool.getBytesOutstanding());
+    }
+
+    @Test
+    public void recordsVideoOnly() throws Exception {
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, null, encoderThread, null);
+        pipeline.start();
+        emitFrames(pipeline, FRAME_RATE);
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        FakeMuxer muxer = pipeline.muxer;
+        assertEquals(1, muxer.getTrackCount());
+        assertEquals(0, muxer.getErrorCount());
+        assertEquals(FRAME_RATE, muxer.getSampleCount(0));
+        // timestamps are the arrival times on the encoder thread
+        long lastPtsUs = muxer.getLastPtsUs(0);
+        assertTrue("last frame at " + lastPtsUs + "us",
+                lastPtsUs > 900000L && lastPtsUs < 1000000L + TIMEOUT_MILLIS * 1000L);
+        assertEquals(0, pipeline.recorder.pool.getBytesOutstanding());
+    }
+
+    @Test
+    public void recordsWithoutAudioIfTheMicFails() throws Exception {
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, new FakeAudioSource(false),
+                encoderThread, null);
+        pipeline.start();
+        emitFrames(pipeline, 10);
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        assertEquals(1, pipeline.muxer.getTrackCount());
+        assertEquals(10, pipeline.muxer.getSampleCount(0));
+    }
+
+    @Test
+    public void keepsUpWithoutPacing() throws Exception {
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, null, encoderThread, null);
+        pipeline.start();
+        // far more than the sample memory holds at once
+        int frames = (int) (4 * FakePipeline.SAMPLE_MEMORY_LIMIT / FRAME_SIZE);
+        for (int i = 0; i < frames; i++)
+            pipeline.emitFrame(FRAME_SIZE, i % GOP == 0);
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        assertEquals(0, pipeline.muxer.getErrorCount());
+        assertEquals(frames, pipeline.muxer.getSampleCount(0));
+        assertEquals((long) frames * FRAME_SIZE, pipeline.muxer.getBytes(0));
+        assertTrue(pipeline.recorder.pool.getHighWaterBytes() <= FakePipeline.SAMPLE_MEMORY_LIMIT);
+    }
+
+    @Test
+    public void pauseLeavesOutTheVideoUpToAKeyframe() throws Exception {
+        // on the calling thread, so the pause lands between known frames
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, null, null, null);
+        pipeline.start();
+        for (int i = 0; i < 10; i++)
+            pipeline.emitFrame(FRAME_SIZE, i == 0);
+        pipeline.recorder.pause(System.nanoTime());
+        for (int i = 0; i < 10; i++)
+            pipeline.emitFrame(FRAME_SIZE, i == 5);
+        pipeline.recorder.resume(System.nanoTime());
+        // not decodable without the keyframe that comes next
+        for (int i = 0; i < 3; i++)
+            pipeline.emitFrame(FRAME_SIZE, false);
+        for (int i = 0; i < 10; i++)
+            pipeline.emitFrame(FRAME_SIZE, i == 0);
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        assertEquals(20, pipeline.muxer.getSampleCount(0));
+        assertEquals(2, pipeline.muxer.getKeyframeCount());
+        assertEquals(0, pipeline.muxer.getErrorCount());
+    }
+
+    @Test
+    public void adaptsTheBitrate() throws Exception {
+        int maxBitrate = 8000000;
+        BitrateController controller = new BitrateController(maxBitrate / 4, maxBitrate / 8, maxBitrate);
+        FakePipeline pipeline = new FakePipeline(FRAME_SIZE, null, null, controller);
+        pipeline.start();
+        // a full size frame every 33ms is about 8Mbit/s, four times the
+        // budget, which the first window of a second already shows
+        for (int i = 0; i < 45; i++) {
+            pipeline.video.emitFrame(FRAME_SIZE, 0);
+            Thread.sleep(33);
+        }
+        assertTrue(pipeline.finish(TIMEOUT_MILLIS));
+
+        int bitrate = pipeline.video.getVideoBitrate();
+        assertTrue("bitrate " + bitrate, bitrate > 0 && bitrate < maxBitrate);
+        assertEquals(0, pipeline.muxer.getErrorCount());
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Point;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Every panel size against every set of encoder capabilities and size
+ * limits: the size picked must be one the encoder sustains, and no larger
+ * one that keeps the aspect ratio may fit.
+ */
+@RunWith(Parameterized.class)
+public class ResolutionSelectorTest {
+    private static final int FRAME_RATE = 30;
+    private static final double ASPECT_TOLERANCE = 0.01;
+    private static final int MIN_SHORT_SIDE = 240;
+
+    private static final int[][] PANELS = {
+        { 720, 1280 },
+        { 1080, 1920 },
+        { 1080, 2340 },
+        { 1440, 2560 },
+        { 1440, 3120 },
+        { 1200, 1920 },
+        { 1536, 2048 },
+        { 1920, 1080 },
+        { 2560, 1600 },
+    };
+
+    // longer and shorter side limits from the media profiles
+    private static final int[][] LIMITS = {
+        { 1920, 1080 },
+        { 1280, 720 },
+        { 4096, 2160 },
+    };
+
+    /**
+     * An AVC encoder limited like the levels limit it: a largest frame and a
+     * macroblock rate, plus optionally a measured pixel rate.
+     */
+    static class Capabilities implements ResolutionSelector.Capabilities {
+        final String name;
+        int widthAlignment = 2;
+        int heightAlignment = 2;
+        int maxWidth = 4096;
+        int maxHeight = 4096;
+        // the encoder takes the sizes turned sideways too
+        boolean rotates = true;
+        int maxFrameMacroblocks = Integer.MAX_VALUE;
+        long maxMacroblocksPerSecond = Long.MAX_VALUE;
+        // measured throughput, 0 if not measured
+        long achievablePixelsPerSecond;
+        int minBitrate = 1;
+        int maxBitrate = 40000000;
+        int highLevel = CodecProfileLevel.AVCLevel51;
+        int mainLevel = CodecProfileLevel.AVCLevel51;
+
+        Capabilities(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public int getWidthAlignment() {
+            return widthAlignment;
+        }
+
+        @Override
+        public int getHeightAlignment() {
+            return heightAlignment;
+        }
+
+        private boolean fits(int width, int height) {
+            return width <= maxWidth && height <= maxHeight
+                    || rotates && width <= maxHeight && height <= maxWidth;
+        }
+
+        @Override
+        public boolean areSizeAndRateSupported(int width, int height, double frameRate) {
+            if (width % widthAlignment != 0 || height % heightAlignment != 0 || !fits(width, height))
+                return false;
+            long macroblocks = (long) ((width + 15) / 16) * ((height + 15) / 16);
+            return macroblocks <= maxFrameMacroblocks
+                    && macroblocks * frameRate <= maxMacroblocksPerSecond;
+        }
+
+        @Override
+        public double getAchievableFrameRate(int width, int height) {
+            if (achievablePixelsPerSecond == 0)
+                return Double.NaN;
+            return (double) achievablePixelsPerSecond / ((long) width * height);
+        }
+
+        @Override
+        public int getMinBitrate() {
+            return minBitrate;
+        }
+
+        @Override
+        public int getMaxBitrate() {
+            return maxBitrate;
+        }
+
+        @Override
+        public int getMaxLevel(int profile) {
+            if (profile == CodecProfileLevel.AVCProfileHigh)
+                return highLevel;
+            if (profile == CodecProfileLevel.AVCProfileMain)
+                return mainLevel;
+            return 0;
+        }
+
+        boolean sustains(int width, int height, int frameRate) {
+            double achievable = getAchievableFrameRate(width, height);
+            return areSizeAndRateSupported(width, height, frameRate)
+                    && (Double.isNaN(achievable) || achievable >= frameRate);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static Capabilities[] capabilities() {
+        Capabilities unconstrained = new Capabilities("unconstrained");
+
+        Capabilities aligned = new Capabilities("16 aligned");
+        aligned.widthAlignment = 16;
+        aligned.heightAlignment = 16;
+        aligned.maxWidth = 1920;
+        aligned.maxHeight = 1920;
+
+        // level 3.1, 720p at 30fps
+        Capabilities level31 = new Capabilities("level 3.1");
+        level31.widthAlignment = 16;
+        level31.heightAlignment = 16;
+        level31.maxWidth = 1280;
+        level31.maxHeight = 1280;
+        level31.maxFrameMacroblocks = 3600;
+        level31.maxMacroblocksPerSecond = 108000;
+        level31.highLevel = 0;
+        level31.mainLevel = CodecProfileLevel.AVCLevel31;
+
+        // level 4.1 on paper, but measured to only manage 1080p at 20fps
+        Capabilities slow = new Capabilities("measured slow");
+        slow.widthAlignment = 4;
+        slow.heightAlignment = 4;
+        slow.maxFrameMacroblocks = 8192;
+        slow.maxMacroblocksPerSecond = 245760;
+        slow.achievablePixelsPerSecond = 1920L * 1080 * 20;
+        slow.highLevel = CodecProfileLevel.AVCLevel41;
+
+        // landscape only, and no high profile
+        Capabilities landscape = new Capabilities("landscape only");
+        landscape.maxWidth = 1920;
+        landscape.maxHeight = 1088;
+        landscape.rotates = false;
+        landscape.highLevel = 0;
+        landscape.mainLevel = CodecProfileLevel.AVCLevel4;
+
+        return new Capabilities[] { unconstrained, aligned, level31, slow, landscape };
+    }
+
+    @Parameters(name = "{0}x{1} {2} within {3}x{4}")
+    public static Collection<Object[]> parameters() {
+        ArrayList<Object[]> parameters = new ArrayList<Object[]>();
+        for (int[] panel : PANELS) {
+            for (Capabilities capabilities : capabilities()) {
+                for (int[] limit : LIMITS)
+                    parameters.add(new Object[] { panel[0], panel[1], capabilities, limit[0], limit[1] });
+            }
+        }
+        return parameters;
+    }
+
+    private final int width;
+    private final int height;
+    private final Capabilities capabilities;
+    private final int maxLong;
+    private final int maxShort;
+
+    public ResolutionSelectorTest(int width, int height, Capabilities capabilities,
+            int maxLong, int maxShort) {
+        this.width = width;
+        this.height = height;
+        this.capabilities = capabilities;
+        this.maxLong = maxLong;
+        this.maxShort = maxShort;
+    }
+
+    // whether the size would do, but for being as large as possible
+    private boolean acceptable(int w, int h) {
+        boolean landscape = width > height;
+        int longSide = landscape ? w : h;
+        int shortSide = landscape ? h : w;
+        double ratio = (double) Math.max(width, height) / Math.min(width, height);
+        return w <= width && h <= height && longSide <= maxLong && shortSide <= maxShort
+                && shortSide >= MIN_SHORT_SIDE
+                && Math.abs((double) longSide / shortSide - ratio) <= ratio * ASPECT_TOLERANCE
+                && capabilities.sustains(w, h, FRAME_RATE);
+    }
+
+    @Test
+    public void picksASizeTheEncoderSustains() {
+        Point size = new ResolutionSelector(capabilities, FRAME_RATE)
+                .select(width, height, maxLong, maxShort);
+        assertNotNull(size);
+        assertEquals("orientation", width > height, size.x > size.y);
+        assertTrue(size + " isn't acceptable", acceptable(size.x, size.y));
+    }
+
+    @Test
+    public void picksTheLargestSize() {
+        Point size = new ResolutionSelector(capabilities, FRAME_RATE)
+                .select(width, height, maxLong, maxShort);
+        boolean landscape = width > height;
+        int shortSide = landscape ? size.y : size.x;
+        double ratio = (double) Math.max(width, height) / Math.min(width, height);
+        double error = aspectError(size.x, size.y, ratio);
+        // every acceptable size, found the slow way: none with a longer
+        // short side, none closer to the aspect ratio with the same one
+        for (int w = 1; w <= width; w++) {
+            for (int h = 1; h <= height; h++) {
+                int s = landscape ? h : w;
+                if (s < shortSide || !acceptable(w, h))
+                    continue;
+                assertFalse(w + "x" + h + " is larger than " + size, s > shortSide);
+                assertFalse(w + "x" + h + " is closer to the aspect ratio than " + size,
+                        aspectError(w, h, ratio) < error);
+            }
+        }
+    }
+
+    private static double aspectError(int w, int h, double ratio) {
+        return Math.abs((double) Math.max(w, h) / Math.min(w, h) - ratio);
+    }
+
+    @Test
+    public void clampsTheBitrate() {
+        ResolutionSelector selector = new ResolutionSelector(capabilities, FRAME_RATE);
+        assertEquals(capabilities.maxBitrate, selector.clampBitrate(Integer.MAX_VALUE));
+        assertEquals(capabilities.minBitrate, selector.clampBitrate(0));
+        assertEquals(capabilities.minBitrate, selector.getMinBitrate());
+    }
+
+    @Test
+    public void prefersHighProfile() {
+        CodecProfileLevel profile = new ResolutionSelector(capabilities, FRAME_RATE).selectProfile();
+        if (capabilities.highLevel != 0) {
+            assertEquals(CodecProfileLevel.AVCProfileHigh, profile.profile);
+            assertEquals(capabilities.highLevel, profile.level);
+        }
+        else {
+            assertEquals(CodecProfileLevel.AVCProfileMain, profile.profile);
+            assertEquals(capabilities.mainLevel, profile.level);
+        }
+    }
+}
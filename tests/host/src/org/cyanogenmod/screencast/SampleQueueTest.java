@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue the encoder threads hand samples to the muxer thread through,
+ * kept small so producers keep running into a full queue and each other.
+ */
+public class SampleQueueTest {
+    private static final int PRODUCERS = 4;
+    private static final int SAMPLES = 200000;
+    private static final int CAPACITY = 8;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    // marker samples tagged with their producer and their number
+    private static EncodedSample sample(int producer, long number) {
+        EncodedSample sample = new EncodedSample();
+        sample.track = producer;
+        sample.queuedNanos = number;
+        return sample;
+    }
+
+    @Test
+    public void roundsUpTheCapacity() {
+        SampleQueue queue = new SampleQueue(5);
+        for (int i = 0; i < 8; i++)
+            assertTrue(queue.offer(sample(0, i)));
+        assertFalse(queue.offer(sample(0, 8)));
+        for (int i = 0; i < 8; i++)
+            assertEquals(i, queue.poll().queuedNanos);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void wrapsAround() {
+        SampleQueue queue = new SampleQueue(2);
+        for (int i = 0; i < 100; i++) {
+            EncodedSample sample = sample(0, i);
+            assertTrue(queue.offer(sample));
+            assertSame(sample, queue.poll());
+            assertNull(queue.poll());
+        }
+    }
+
+    @Test
+    public void keepsTheOrderOfEachProducer() throws Exception {
+        final SampleQueue queue = new SampleQueue(CAPACITY);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService producers = Executors.newFixedThreadPool(PRODUCERS);
+        Future<?>[] done = new Future<?>[PRODUCERS];
+        try {
+            for (int p = 0; p < PRODUCERS; p++) {
+                final int producer = p;
+                done[p] = producers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        for (long i = 0; i < SAMPLES; i++) {
+                            EncodedSample sample = sample(producer, i);
+                            while (!queue.offer(sample))
+                                Thread.yield();
+                        }
+                    }
+                });
+            }
+
+            long[] next = new long[PRODUCERS];
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            start.countDown();
+            for (int received = 0; received < PRODUCERS * SAMPLES; ) {
+                EncodedSample sample = queue.poll();
+                if (sample == null) {
+                    if (System.currentTimeMillis() > deadline)
+                        fail("Only " + received + " samples arrived");
+                    Thread.yield();
+                    continue;
+                }
+                assertEquals("sample of producer " + sample.track,
+                        next[sample.track]++, sample.queuedNanos);
+                received++;
+            }
+            for (Future<?> producer : done)
+                producer.get();
+            assertNull(queue.poll());
+        }
+        finally {
+            producers.shutdownNow();
+        }
+        assertTrue(producers.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+}
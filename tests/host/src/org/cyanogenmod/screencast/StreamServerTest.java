@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+public class StreamServerTest {
+    private static final long MAX_QUEUED_BYTES = 64 * 1024;
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private StreamServer server;
+    private Socket client;
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null)
+            client.close();
+        if (server != null)
+            server.close();
+    }
+
+    // connects over loopback, returns once the server thread accepted
+    private void connect() throws Exception {
+        client = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        client.setSoTimeout(TIMEOUT_MILLIS);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.getClientCount() == 0) {
+            assertTrue("not accepted", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void sendAndReceive(byte[] chunk) throws Exception {
+        server.send(ByteBuffer.wrap(chunk), true);
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        byte[] received = new byte[chunk.length];
+        in.readFully(received);
+        assertArrayEquals(chunk, received);
+    }
+
+    @Test
+    public void listensOnLoopbackByDefault() throws Exception {
+        server = new StreamServer(0, false, MAX_QUEUED_BYTES);
+        server.start();
+        assertTrue(server.getAddress().isLoopbackAddress());
+
+        connect();
+        sendAndReceive(new byte[] { 1, 2, 3, 4 });
+    }
+
+    @Test
+    public void listensOnEveryInterfaceForTheLan() throws Exception {
+        server = new StreamServer(0, true, MAX_QUEUED_BYTES);
+        server.start();
+        assertTrue(server.getAddress().isAnyLocalAddress());
+
+        connect();
+        sendAndReceive(new byte[] { 5, 6, 7, 8 });
+    }
+
+    @Test
+    public void newClientsStartAtAKeyframe() throws Exception {
+        server = new StreamServer(0, false, MAX_QUEUED_BYTES);
+        server.start();
+        connect();
+        sendAndReceive(new byte[] { 1 });
+
+        server.send(ByteBuffer.wrap(new byte[] { 2 }), false);
+        server.send(ByteBuffer.wrap(new byte[] { 3 }), true);
+        assertEquals(2, client.getInputStream().read());
+        assertEquals(3, client.getInputStream().read());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cyanogenmod.screencast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The encoder caps are only parsed out of the profiles when these change.
+ * Skipped parses are told apart by overwriting the profiles with garbage
+ * that can't be parsed, keeping their size and mtime.
+ */
+public class VideoEncoderCapTest {
+    private static final long MODIFIED = 1230768000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File profiles;
+    private File cache;
+
+    @Before
+    public void setUp() throws Exception {
+        VideoEncoderCap.clearMemoryCache();
+        profiles = folder.newFile("media_profiles.xml");
+        cache = new File(folder.getRoot(), "video_encoder_cap");
+        writeProfiles(1920, 1080, 20000000, MODIFIED);
+    }
+
+    private void writeProfiles(int width, int height, int bitRate, long modified) throws Exception {
+        MediaProfiles.write(profiles, MediaProfiles.generate(2, width, height, bitRate));
+        assertTrue(profiles.setLastModified(modified));
+    }
+
+    // same size and mtime, but nothing a parser would take
+    private void garbleProfiles() throws Exception {
+        long modified = profiles.lastModified();
+        byte[] garbage = new byte[(int) profiles.length()];
+        Arrays.fill(garbage, (byte) '<');
+        OutputStream out = new FileOutputStream(profiles);
+        try {
+            out.write(garbage);
+        }
+        finally {
+            out.close();
+        }
+        assertTrue(profiles.setLastModified(modified));
+    }
+
+    private static void assertCap(int width, int height, int bitRate, VideoEncoderCap cap) {
+        assertEquals(width, cap.maxFrameWidth);
+        assertEquals(height, cap.maxFrameHeight);
+        assertEquals(bitRate, cap.maxBitRate);
+    }
+
+    @Test
+    public void parsesTheH264Cap() throws Exception {
+        assertCap(1920, 1080, 20000000, VideoEncoderCap.get(profiles, cache));
+        assertTrue(cache.exists());
+    }
+
+    @Test
+    public void skipsTheParseWhenUnchanged() throws Exception {
+        VideoEncoderCap cap = VideoEncoderCap.get(profiles, cache);
+        garbleProfiles();
+
+        assertSame(cap, VideoEncoderCap.get(profiles, cache));
+    }
+
+    @Test
+    public void skipsTheParseInTheNextProcess() throws Exception {
+        VideoEncoderCap.get(profiles, cache);
+        VideoEncoderCap.clearMemoryCache();
+        garbleProfiles();
+
+        assertCap(1920, 1080, 20000000, VideoEncoderCap.get(profiles, cache));
+    }
+
+    @Test
+    public void parsesAgainWhenTheProfilesChange() throws Exception {
+        VideoEncoderCap.get(profiles, cache);
+        // e.g. after a system update
+        writeProfiles(3840, 2160, 48000000, MODIFIED + 60000);
+        assertCap(3840, 2160, 48000000, VideoEncoderCap.get(profiles, cache));
+
+        VideoEncoderCap.clearMemoryCache();
+        assertCap(3840, 2160, 48000000, VideoEncoderCap.get(profiles, cache));
+    }
+
+    @Test
+    public void parsesWhenTheCacheIsUnreadable() throws Exception {
+        OutputStream out = new FileOutputStream(cache);
+        try {
+            out.write(new byte[] { 0, 0, 0, 1, 0 });
+        }
+        finally {
+            out.close();
+        }
+        assertCap(1920, 1080, 20000000, VideoEncoderCap.get(profiles, cache));
+        // and replaces it
+        VideoEncoderCap.clearMemoryCache();
+        garbleProfiles();
+        assertCap(1920, 1080, 20000000, VideoEncoderCap.get(profiles, cache));
+    }
+}
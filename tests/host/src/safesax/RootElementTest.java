@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2007 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package safesax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One schema parsing many documents on many threads at once, through both
+ * backends. Every parse must see its own document and nothing of the
+ * others, including which required children were visited.
+ */
+public class RootElementTest {
+
+  private static final int THREADS = 8;
+  private static final int DOCUMENTS = 400;
+  private static final int ENTRIES = 20;
+  /** Every this many documents lacks a required child. */
+  private static final int BROKEN_EVERY = 7;
+
+  /** What the listeners saw in the current parse of each thread. */
+  private static final ThreadLocal<List<String>> seen
+      = new ThreadLocal<List<String>>() {
+        @Override
+        protected List<String> initialValue() {
+          return new ArrayList<String>();
+        }
+      };
+
+  private RootElement root;
+
+  @Before
+  public void setUp() {
+    root = new RootElement("feed");
+    Element entry = root.getChild("entry");
+    entry.setStartElementListener(new StartElementListener() {
+      public void start(Attributes attributes) {
+        seen.get().add("entry " + attributes.getValue("", "id"));
+      }
+    });
+    entry.requireChild("title").setEndTextElementListener(
+        new EndTextElementListener() {
+          public void end(String body) {
+            seen.get().add("title " + body);
+          }
+        });
+    entry.getChild("count").setEndTextSequenceListener(
+        new EndTextSequenceListener() {
+          public void end(CharSequence body) {
+            seen.get().add("count " + body);
+          }
+        });
+  }
+
+  private static String document(int thread, int document) {
+    boolean broken = document % BROKEN_EVERY == 0;
+    StringBuilder xml = new StringBuilder("<feed>");
+    for (int i = 0; i < ENTRIES; i++) {
+      xml.append("<entry id='").append(thread).append('-').append(i)
+          .append("'>");
+      if (!broken || i != ENTRIES / 2) {
+        xml.append("<title>t").append(thread).append('.').append(document)
+            .append("</title>");
+      }
+      xml.append("<skipped><count>-1</count></skipped>");
+      xml.append("<count>").append(i * document).append("</count>");
+      xml.append("</entry>");
+    }
+    return xml.append("</feed>").toString();
+  }
+
+  private static List<String> expected(int thread, int document) {
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < ENTRIES; i++) {
+      expected.add("entry " + thread + "-" + i);
+      expected.add("title t" + thread + "." + document);
+      expected.add("count " + i * document);
+    }
+    return expected;
+  }
+
+  private void parseConcurrently(final boolean pull) throws Exception {
+    ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int t = 0; t < THREADS; t++) {
+        final int thread = t;
+        results.add(threads.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            // One handler for all the parses of this thread, as it may be
+            // reused after a failed parse too.
+            ContentHandler handler = root.newContentHandler();
+            for (int d = 0; d < DOCUMENTS; d++) {
+              parseDocument(handler, pull, thread, d);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      threads.shutdownNow();
+      assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  private static void parseDocument(ContentHandler handler, boolean pull,
+      int thread, int document) throws Exception {
+    List<String> seen = RootElementTest.seen.get();
+    seen.clear();
+    StringReader in = new StringReader(document(thread, document));
+    try {
+      if (pull) {
+        Parsers.pullParse(in, handler);
+      } else {
+        Parsers.parse(in, handler);
+      }
+      if (document % BROKEN_EVERY == 0) {
+        fail("Missing title not reported in " + thread + "." + document);
+      }
+    } catch (BadXmlException e) {
+      if (document % BROKEN_EVERY != 0) {
+        throw e;
+      }
+      return;
+    }
+    assertEquals(expected(thread, document), seen);
+  }
+
+  @Test
+  public void saxParsesConcurrently() throws Exception {
+    parseConcurrently(false);
+  }
+
+  @Test
+  public void pullParsesConcurrently() throws Exception {
+    parseConcurrently(true);
+  }
+
+  @Test
+  public void sharedHandlerParsesInTurn() throws Exception {
+    for (int d = 1; d < BROKEN_EVERY * 2; d++) {
+      parseDocument(root.getContentHandler(), d % 2 == 0, 0, d);
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void schemaIsFrozenOnceUsed() throws Exception {
+    parseDocument(root.newContentHandler(), false, 0, 1);
+    root.getChild("entry").getChild("link");
+  }
+}